@@ -1,44 +1,36 @@
 package common.wechat;
 
 /**
+ * access_token的不可变快照
+ * 刷新时整体替换,读取方无需加锁
+ *
  * @author LongerHsiao
  * @date 2017-11-8
  */
-class AccessToken {
-    private AccessToken() {
+final class AccessToken implements ExpirableToken {
+    private final String accessToken;
+    private final long expiresAt;
 
+    AccessToken(String accessToken, long expiresAt) {
+        this.accessToken = accessToken;
+        this.expiresAt = expiresAt;
     }
 
-    private static class AccessTokenHolder {
-        private static final AccessToken INSTANCE = new AccessToken();
-    }
-
-    public static AccessToken getInstance() {
-        return AccessTokenHolder.INSTANCE;
-    }
-
-    public boolean isExpired() {
-        return (System.currentTimeMillis() - this.timestamp) >= expiredSecond * 1000;
+    static AccessToken expiresIn(String accessToken, long expiredSecond) {
+        return new AccessToken(accessToken, System.currentTimeMillis() + expiredSecond * 1000);
     }
 
     public String getAccessToken() {
         return accessToken;
     }
 
-    public void setAccessToken(String accessToken) {
-        this.accessToken = accessToken;
-        refreshTimestamp();
-    }
-
-    private void refreshTimestamp() {
-        this.timestamp = System.currentTimeMillis();
+    @Override
+    public String getValue() {
+        return accessToken;
     }
 
-    public void setExpiredSecond(int expiredSecond) {
-        this.expiredSecond = expiredSecond;
+    @Override
+    public long getExpiresAt() {
+        return expiresAt;
     }
-
-    private String accessToken;
-    private long timestamp;
-    private int expiredSecond;
 }
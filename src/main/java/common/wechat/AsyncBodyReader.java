@@ -0,0 +1,67 @@
+package common.wechat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * 非阻塞读取请求体
+ * 数据到达时由容器回调,读取期间不占用容器线程;读取完成后在容器线程中回调onBody
+ *
+ * @author LongerHsiao
+ * @date 2018-04-16
+ */
+final class AsyncBodyReader implements ReadListener {
+    private static Logger logger = LoggerFactory.getLogger(AsyncBodyReader.class);
+
+    // 微信推送的消息体远小于该上限
+    private static final int MAX_BODY_SIZE = 1024 * 1024;
+
+    private final AsyncContext asyncContext;
+    private final ServletInputStream inputStream;
+    private final Consumer<byte[]> onBody;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+    private final byte[] chunk = new byte[1024];
+
+    private AsyncBodyReader(AsyncContext asyncContext, ServletInputStream inputStream, Consumer<byte[]> onBody) {
+        this.asyncContext = asyncContext;
+        this.inputStream = inputStream;
+        this.onBody = onBody;
+    }
+
+    static void read(AsyncContext asyncContext, Consumer<byte[]> onBody) throws IOException {
+        ServletInputStream inputStream = asyncContext.getRequest().getInputStream();
+        inputStream.setReadListener(new AsyncBodyReader(asyncContext, inputStream, onBody));
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        while (inputStream.isReady() && !inputStream.isFinished()) {
+            int length = inputStream.read(chunk);
+            if (length < 0) {
+                break;
+            }
+            body.write(chunk, 0, length);
+            if (body.size() > MAX_BODY_SIZE) {
+                throw new IOException("request body exceeds " + MAX_BODY_SIZE + " bytes");
+            }
+        }
+    }
+
+    @Override
+    public void onAllDataRead() {
+        onBody.accept(body.toByteArray());
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.error("<<======AsyncBodyReader.onError:" + t.getMessage());
+        asyncContext.complete();
+    }
+}
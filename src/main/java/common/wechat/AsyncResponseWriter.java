@@ -0,0 +1,73 @@
+package common.wechat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+
+/**
+ * 非阻塞写出响应
+ * 输出缓冲可写时由容器回调,写出完成后结束异步请求
+ *
+ * @author LongerHsiao
+ * @date 2018-04-16
+ */
+final class AsyncResponseWriter implements WriteListener {
+    private static Logger logger = LoggerFactory.getLogger(AsyncResponseWriter.class);
+
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream outputStream;
+    private final byte[] content;
+    private boolean written = false;
+
+    private AsyncResponseWriter(AsyncContext asyncContext, ServletOutputStream outputStream, byte[] content) {
+        this.asyncContext = asyncContext;
+        this.outputStream = outputStream;
+        this.content = content;
+    }
+
+    /**
+     * 写出content后结束异步请求,可在任意线程中调用
+     */
+    static void write(AsyncContext asyncContext, byte[] content) {
+        try {
+            ServletOutputStream outputStream = asyncContext.getResponse().getOutputStream();
+            outputStream.setWriteListener(new AsyncResponseWriter(asyncContext, outputStream, content));
+        } catch (IOException | IllegalStateException e) {
+            // 请求已超时或已结束
+            logger.error("<<======AsyncResponseWriter.write:" + e.getMessage());
+            complete(asyncContext);
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        if (!written) {
+            if (!outputStream.isReady()) {
+                return;
+            }
+            outputStream.write(content);
+            written = true;
+        }
+        // 上次写出未完成时isReady为false,完成后容器会再次回调
+        if (outputStream.isReady()) {
+            asyncContext.complete();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.error("<<======AsyncResponseWriter.onError:" + t.getMessage());
+        complete(asyncContext);
+    }
+
+    private static void complete(AsyncContext asyncContext) {
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package common.wechat;
+
+import java.io.IOException;
+
+/**
+ * 接口熔断中,未请求微信服务器
+ *
+ * @author LongerHsiao
+ * @date 2018-05-09
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = -7719056380342210654L;
+
+    /**
+     * 熔断时发送结果的错误码,微信服务器不返回该值
+     */
+    public static final int CIRCUIT_OPEN = -2;
+
+    CircuitOpenException(String message) {
+        super(message);
+    }
+}
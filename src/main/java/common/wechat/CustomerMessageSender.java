@@ -0,0 +1,97 @@
+package common.wechat;
+
+import com.alibaba.fastjson.JSONObject;
+import common.tools.StringUtil;
+
+import java.util.Properties;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * @api CustomerMessageSender 5、客服消息发送
+ * @apiGroup Static Util
+ * @apiName CustomerMessageSender
+ * @apiVersion 1.0.0
+ * @apiParam {Number} customerConcurrency 群发客服消息时并行请求数[默认8]
+ * @apiParam {Number} customerQps 客服消息的每秒请求数上限[默认100，为0时不限制，同一公众号的单条发送及群发共用]
+ * @apiParam {Number} interactionTrackerSize 记录最近互动时间的用户数上限[默认100000，超出时覆盖最早的记录]
+ * @apiDescription 客服消息仅能发送给48小时内与公众号互动过的用户。<br/>
+ * WeChatMessageServlet收到的消息及事件记录为用户的互动时间，已超出48小时的用户在本地直接失败(errcode 45015)，不再请求微信服务器；
+ * 未记录互动时间的用户照常发送，微信服务器返回45015时记录该用户已超时。<br/>
+ * 启用缓存(cacheOn)时互动时间同时记录于redis，集群中任一节点收到的互动对所有节点生效；redis读取失败时视为未记录，照常发送。<br/>
+ */
+public final class CustomerMessageSender {
+    /**
+     * 回复时间超过限制
+     */
+    public static final int OUT_OF_TIME_LIMIT = 45015;
+
+    private final WeChatClient client;
+    private final MessageBroadcaster broadcaster;
+    private final RateLimiter rateLimiter;
+    private final InteractionTracker interactionTracker = InteractionTracker.getInstance();
+
+    CustomerMessageSender(WeChatClient client, Properties prop) {
+        this.client = client;
+        int concurrency = StringUtil.isEmpty(prop.getProperty("customerConcurrency")) ?
+                8 : Integer.parseInt(prop.getProperty("customerConcurrency"));
+        int qps = StringUtil.isEmpty(prop.getProperty("customerQps")) ?
+                100 : Integer.parseInt(prop.getProperty("customerQps"));
+        broadcaster = new MessageBroadcaster("customer message", concurrency);
+        rateLimiter = new RateLimiter(qps);
+    }
+
+    /**
+     * 发送客服消息
+     *
+     * @param message 客服消息json,如{"touser":"OPENID","msgtype":"text","text":{"content":"Hello"}}
+     */
+    public MessageSendResult send(JSONObject message) {
+        return send(message, QuotaGovernor.Priority.INTERACTIVE);
+    }
+
+    private MessageSendResult send(JSONObject message, QuotaGovernor.Priority priority) {
+        String touser = message.getString("touser");
+        if (!isWithinWindow(touser)) {
+            return new MessageSendResult(touser, OUT_OF_TIME_LIMIT, "out of 48 hours window", 0);
+        }
+        try {
+            rateLimiter.acquire();
+            JSONObject jsonObject = client.postWithAccessToken(WeChatUrlFormat.SEND_CUSTOMER_MSG, message.toJSONString(),
+                    priority);
+            if (jsonObject == null) {
+                return new MessageSendResult(touser, -1, "empty response", 0);
+            }
+            int errcode = jsonObject.getIntValue("errcode");
+            if (errcode == OUT_OF_TIME_LIMIT) {
+                interactionTracker.expire(touser);
+            }
+            return new MessageSendResult(touser, errcode, jsonObject.getString("errmsg"), 0);
+        } catch (QuotaExceededException e) {
+            return new MessageSendResult(touser, e.getErrcode(), e.getMessage(), 0);
+        } catch (CircuitOpenException e) {
+            return new MessageSendResult(touser, CircuitOpenException.CIRCUIT_OPEN, e.getMessage(), 0);
+        } catch (Exception e) {
+            return new MessageSendResult(touser, -1, e.getMessage(), 0);
+        }
+    }
+
+    /**
+     * 群发客服消息,所有消息发送完成后返回
+     * 规则同TemplateMessageSender.send,已超出48小时的用户不占用customerQps及每日配额
+     *
+     * @param callback 每条消息的发送结果,可为null
+     */
+    public MessageSendStats send(Stream<JSONObject> messages, Consumer<MessageSendResult> callback) {
+        return broadcaster.broadcast(messages, message -> send(message, QuotaGovernor.Priority.BULK), callback);
+    }
+
+    /**
+     * 用户是否仍可能在48小时窗口内,未记录互动时间时返回true
+     */
+    public boolean isWithinWindow(String openid) {
+        long lastInteraction = interactionTracker.getLastInteraction(openid);
+        return lastInteraction == InteractionTracker.UNKNOWN
+                || System.currentTimeMillis() / 1000 - lastInteraction < InteractionTracker.WINDOW_SECOND;
+    }
+}
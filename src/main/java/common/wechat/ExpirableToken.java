@@ -0,0 +1,20 @@
+package common.wechat;
+
+/**
+ * 带有失效时间的凭证快照(不可变)
+ *
+ * @author LongerHsiao
+ * @date 2018-03-02
+ */
+interface ExpirableToken {
+    String getValue();
+
+    /**
+     * 失效时间点(毫秒)
+     */
+    long getExpiresAt();
+
+    default boolean isExpired() {
+        return System.currentTimeMillis() >= getExpiresAt();
+    }
+}
@@ -0,0 +1,88 @@
+package common.wechat;
+
+import common.tools.AppException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 关注者信息迭代器
+ * 获取当前页用户信息的同时,在异步线程池中预取下一页openid;
+ * 内存中最多保留当前页的用户信息及下一页的openid;
+ * 获取某页openid或用户信息失败时抛出AppException,不返回缺少用户的页.
+ *
+ * @author LongerHsiao
+ * @date 2018-03-20
+ */
+final class FollowerInfoIterator implements Iterator<WeChatUserInfo> {
+    private final WeChatClient client;
+    private final FollowerPageIterator pages;
+    private CompletableFuture<List<String>> prefetch;
+    private Iterator<WeChatUserInfo> current = Collections.emptyIterator();
+
+    FollowerInfoIterator(WeChatClient client) {
+        this.client = client;
+        this.pages = new FollowerPageIterator(client);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            List<String> page;
+            if (prefetch != null) {
+                page = awaitPrefetch();
+            } else if (pages.hasNext()) {
+                page = pages.next();
+            } else {
+                return false;
+            }
+            if (pages.hasNext()) {
+                prefetch = WeChatAsyncHelper.submit(pages::next);
+            }
+            current = queryUserInfos(page).iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public WeChatUserInfo next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    /**
+     * 获取一页用户信息,任一批次失败时整页失败
+     */
+    private Collection<WeChatUserInfo> queryUserInfos(List<String> page) {
+        try {
+            return client.getUserInfoBatch(page).values();
+        } catch (AppException e) {
+            throw new AppException("query follower infos failed, page size=" + page.size() + ", " + e.getMessage());
+        }
+    }
+
+    private List<String> awaitPrefetch() {
+        CompletableFuture<List<String>> future = prefetch;
+        prefetch = null;
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            // 异步线程池已满时在当前线程请求
+            if (e.getCause() instanceof RejectedExecutionException) {
+                return pages.next();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new AppException("follower page prefetch failed");
+        }
+    }
+}
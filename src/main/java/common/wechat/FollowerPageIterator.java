@@ -0,0 +1,49 @@
+package common.wechat;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * 关注者openid的分页迭代器
+ * 以next_openid逐页请求user/get接口,每页最多10000个openid,内存中仅保留当前页
+ *
+ * @author LongerHsiao
+ * @date 2018-03-20
+ */
+final class FollowerPageIterator implements Iterator<List<String>> {
+    private final WeChatClient client;
+    private String nextOpenid = "";
+    private boolean finished;
+
+    FollowerPageIterator(WeChatClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !finished;
+    }
+
+    /**
+     * 请求下一页,最后一页可能为空列表
+     */
+    @Override
+    public List<String> next() {
+        if (finished) {
+            throw new NoSuchElementException();
+        }
+        JSONObject jsonObject = client.queryFollowers(nextOpenid);
+        JSONObject data = jsonObject.getJSONObject("data");
+        JSONArray openids = data == null ? null : data.getJSONArray("openid");
+        nextOpenid = jsonObject.getString("next_openid");
+        if (openids == null || openids.isEmpty() || nextOpenid == null || nextOpenid.isEmpty()) {
+            finished = true;
+        }
+        return openids == null ? Collections.emptyList() : openids.toJavaList(String.class);
+    }
+}
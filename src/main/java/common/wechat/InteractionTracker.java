@@ -0,0 +1,212 @@
+package common.wechat;
+
+import common.tools.StringUtil;
+import common.wechat.cache.CacheManager;
+import common.wechat.message.WeChatRequestMessage;
+import common.wechat.util.ConfigBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+
+/**
+ * 用户最近一次互动时间
+ * 1、以openid的64位指纹为key、互动时刻(秒)为值,存放于定长数组中,每个用户约占16字节;
+ * 2、超过interactionTrackerSize时覆盖探测范围内最早的记录,未记录的用户视为未知;
+ * 3、按指纹分段加锁,各段互不阻塞;
+ * 4、启用缓存时互动时刻同时写入redis,本地记录未知或已超出48小时时以redis中的记录为准,集群各节点共享.
+ *
+ * @author LongerHsiao
+ * @date 2018-05-02
+ */
+public final class InteractionTracker {
+    private static Logger logger = LoggerFactory.getLogger(InteractionTracker.class);
+
+    private InteractionTracker() {
+        init();
+    }
+
+    private static class InteractionTrackerHolder {
+        private static final InteractionTracker INSTANCE = new InteractionTracker();
+    }
+
+    public static InteractionTracker getInstance() {
+        return InteractionTrackerHolder.INSTANCE;
+    }
+
+    /**
+     * 未记录互动时间
+     */
+    public static final long UNKNOWN = -1;
+
+    /**
+     * 客服消息窗口
+     */
+    static final long WINDOW_SECOND = 48 * 3600L;
+
+    private static final int SEGMENTS = 16;
+    private static final int MAX_PROBES = 8;
+
+    private Segment[] segments;
+    private CacheManager cacheManager;
+    private String cacheKeyPrefix;
+
+    private void init() {
+        Properties prop = ConfigBuilder.getInstance().init(WeChatPropertiesFile.filename);
+        int maxSize = StringUtil.isEmpty(prop.getProperty("interactionTrackerSize")) ?
+                100000 : Integer.parseInt(prop.getProperty("interactionTrackerSize"));
+        // 装载因子不超过0.75,每段的槽数为2的幂
+        int slots = Integer.highestOneBit(Math.max(MAX_PROBES, (int) (maxSize / 0.75 / SEGMENTS)) - 1) << 1;
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(slots);
+        }
+        CacheManager manager = CacheManager.getInstance();
+        if (manager.cacheOn) {
+            String rootKey = prop.getProperty("rootKey");
+            if (StringUtil.isEmpty(rootKey)) {
+                throw new IllegalArgumentException("<<======rootKey could not be null");
+            }
+            cacheManager = manager;
+            cacheKeyPrefix = (rootKey.endsWith(".") ? rootKey : rootKey + ".") + "INTERACTION.";
+        }
+    }
+
+    /**
+     * 记录用户主动发起的互动
+     * 推送消息、点击菜单、关注、扫码等均可开启客服消息窗口;取消关注、自动上报的地理位置及推送结果通知不计入
+     */
+    void record(WeChatRequestMessage message) {
+        if (!isInteraction(message)) {
+            return;
+        }
+        long seconds = message.getCreateTime() > 0 ? message.getCreateTime() : System.currentTimeMillis() / 1000;
+        record(message.getFromUserName(), seconds, false);
+        if (cacheManager != null && !StringUtil.isEmpty(message.getFromUserName())) {
+            try {
+                cacheManager.setCountIfGreater(cacheKeyPrefix + message.getFromUserName(), seconds, (int) WINDOW_SECOND);
+            } catch (Exception e) {
+                logger.warn("<<======InteractionTracker.record:" + message.getFromUserName(), e);
+            }
+        }
+    }
+
+    /**
+     * 微信服务器返回已超出客服消息时限时标记,其他节点记录的更晚互动仍以redis为准
+     */
+    void expire(String openid) {
+        record(openid, 0, true);
+    }
+
+    /**
+     * 最近一次互动时刻(秒),未记录时返回UNKNOWN
+     * 本地记录未知或已超出48小时时读取redis,redis不可用时返回UNKNOWN
+     */
+    public long getLastInteraction(String openid) {
+        if (StringUtil.isEmpty(openid)) {
+            return UNKNOWN;
+        }
+        long fingerprint = fingerprint(openid);
+        long local = segmentOf(fingerprint).get(fingerprint);
+        if (cacheManager == null || (local != UNKNOWN && System.currentTimeMillis() / 1000 - local < WINDOW_SECOND)) {
+            return local;
+        }
+        long shared;
+        try {
+            shared = cacheManager.getCount(cacheKeyPrefix + openid);
+        } catch (Exception e) {
+            logger.warn("<<======InteractionTracker.getLastInteraction:" + openid, e);
+            return UNKNOWN;
+        }
+        if (shared > local) {
+            segmentOf(fingerprint).put(fingerprint, (int) shared, false);
+            return shared;
+        }
+        return local;
+    }
+
+    private void record(String openid, long seconds, boolean overwrite) {
+        if (StringUtil.isEmpty(openid)) {
+            return;
+        }
+        long fingerprint = fingerprint(openid);
+        segmentOf(fingerprint).put(fingerprint, (int) seconds, overwrite);
+    }
+
+    private static boolean isInteraction(WeChatRequestMessage message) {
+        if (!"event".equals(message.getMsgType())) {
+            return true;
+        }
+        String event = message.getEvent();
+        return !("unsubscribe".equals(event) || "LOCATION".equals(event)
+                || "TEMPLATESENDJOBFINISH".equals(event) || "MASSSENDJOBFINISH".equals(event));
+    }
+
+    private Segment segmentOf(long fingerprint) {
+        return segments[(int) (fingerprint >>> 60)];
+    }
+
+    /**
+     * FNV-1a,0保留为空槽
+     */
+    private static long fingerprint(String openid) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < openid.length(); i++) {
+            hash ^= openid.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static final class Segment {
+        private final long[] fingerprints;
+        private final int[] seconds;
+        private final int mask;
+
+        private Segment(int slots) {
+            fingerprints = new long[slots];
+            seconds = new int[slots];
+            mask = slots - 1;
+        }
+
+        private synchronized long get(long fingerprint) {
+            int index = (int) fingerprint & mask;
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int slot = (index + i) & mask;
+                if (fingerprints[slot] == fingerprint) {
+                    return seconds[slot];
+                }
+                if (fingerprints[slot] == 0) {
+                    break;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        /**
+         * @param overwrite 为false时仅当新时刻晚于已记录的时刻才更新
+         */
+        private synchronized void put(long fingerprint, int value, boolean overwrite) {
+            int index = (int) fingerprint & mask;
+            int oldest = index;
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int slot = (index + i) & mask;
+                if (fingerprints[slot] == fingerprint) {
+                    if (overwrite || value > seconds[slot]) {
+                        seconds[slot] = value;
+                    }
+                    return;
+                }
+                if (fingerprints[slot] == 0) {
+                    oldest = slot;
+                    break;
+                }
+                if (seconds[slot] < seconds[oldest]) {
+                    oldest = slot;
+                }
+            }
+            fingerprints[oldest] = fingerprint;
+            seconds[oldest] = value;
+        }
+    }
+}
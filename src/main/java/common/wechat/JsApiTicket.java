@@ -1,44 +1,36 @@
 package common.wechat;
 
 /**
+ * js_api_ticket的不可变快照
+ * 刷新时整体替换,读取方无需加锁
+ *
  * @author LongerHsiao
  * @date 2018-01-13
  */
-public class JsApiTicket {
-    private JsApiTicket() {
+public final class JsApiTicket implements ExpirableToken {
+    private final String ticket;
+    private final long expiresAt;
 
+    JsApiTicket(String ticket, long expiresAt) {
+        this.ticket = ticket;
+        this.expiresAt = expiresAt;
     }
 
-    private static class JsTicketHolder {
-        private static final JsApiTicket INSTANCE = new JsApiTicket();
-    }
-
-    public static JsApiTicket getInstance() {
-        return JsTicketHolder.INSTANCE;
-    }
-
-    public boolean isExpired() {
-        return (System.currentTimeMillis() - this.timestamp) >= expiresSecond * 1000;
+    static JsApiTicket expiresIn(String ticket, long expiresSecond) {
+        return new JsApiTicket(ticket, System.currentTimeMillis() + expiresSecond * 1000);
     }
 
     public String getTicket() {
         return ticket;
     }
 
-    public void setTicket(String ticket) {
-        this.ticket = ticket;
-        refreshTimeStamp();
-    }
-
-    public void setExpiresSecond(int expiresSecond) {
-        this.expiresSecond = expiresSecond;
+    @Override
+    public String getValue() {
+        return ticket;
     }
 
-    private void refreshTimeStamp() {
-        this.timestamp = System.currentTimeMillis();
+    @Override
+    public long getExpiresAt() {
+        return expiresAt;
     }
-
-    private String ticket;
-    private long timestamp;
-    private int expiresSecond;
 }
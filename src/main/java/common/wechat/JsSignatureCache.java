@@ -0,0 +1,174 @@
+package common.wechat;
+
+import common.tools.StringUtil;
+import common.wechat.util.ConfigBuilder;
+import org.apache.commons.lang3.RandomStringUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * js-sdk签名缓存
+ * 1、同一签名窗口内所有url共用一组noncestr和timestamp,窗口时长为jsSignatureCacheSecond;
+ * 2、js_api_ticket变化或窗口到期时开启新窗口,旧窗口的签名随之失效;
+ * 3、以url为key,超过jsSignatureCacheSize时淘汰最久未访问的条目;
+ * 4、每个公众号持有独立的实例,getInstance()返回默认公众号的实例.
+ *
+ * @author LongerHsiao
+ * @date 2018-04-20
+ */
+public final class JsSignatureCache {
+    JsSignatureCache() {
+        init();
+    }
+
+    private static class JsSignatureCacheHolder {
+        private static final JsSignatureCache INSTANCE = new JsSignatureCache();
+    }
+
+    public static JsSignatureCache getInstance() {
+        return JsSignatureCacheHolder.INSTANCE;
+    }
+
+    private int maxSize = 1000;
+    private long windowMillis = 300 * 1000L;
+    private LinkedHashMap<String, CachedSignature> entries;
+    private volatile Window window;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private void init() {
+        Properties prop = ConfigBuilder.getInstance().init(WeChatPropertiesFile.filename);
+        if (!StringUtil.isEmpty(prop.getProperty("jsSignatureCacheSize"))) {
+            maxSize = Integer.parseInt(prop.getProperty("jsSignatureCacheSize"));
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("jsSignatureCacheSecond"))) {
+            windowMillis = Integer.parseInt(prop.getProperty("jsSignatureCacheSecond")) * 1000L;
+        }
+        entries = new LinkedHashMap<String, CachedSignature>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSignature> eldest) {
+                if (size() > maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0 && windowMillis > 0;
+    }
+
+    /**
+     * 当前窗口内url的签名,未命中时返回null
+     */
+    Signature get(String ticket, String url) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Window current = window;
+        CachedSignature entry;
+        synchronized (entries) {
+            entry = entries.get(url);
+        }
+        if (entry != null && current != null && entry.window == current && current.isValid(ticket)) {
+            hits.increment();
+            return entry.signature;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * 当前签名窗口,ticket变化或到期时开启新窗口;未启用缓存时每次返回新窗口
+     */
+    Window window(String ticket) {
+        if (!isEnabled()) {
+            return new Window(ticket, 0);
+        }
+        Window current = window;
+        if (current != null && current.isValid(ticket)) {
+            return current;
+        }
+        synchronized (this) {
+            current = window;
+            if (current == null || !current.isValid(ticket)) {
+                current = new Window(ticket, System.currentTimeMillis() + windowMillis);
+                window = current;
+            }
+            return current;
+        }
+    }
+
+    void put(Window window, String url, Signature signature) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(url, new CachedSignature(window, signature));
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * 签名窗口,窗口内的签名共用noncestr和timestamp
+     */
+    static final class Window {
+        private final String ticket;
+        private final String nonceStr;
+        private final String timestamp;
+        private final long expiresAt;
+
+        private Window(String ticket, long expiresAt) {
+            this.ticket = ticket;
+            this.nonceStr = RandomStringUtils.random(16, true, true);
+            this.timestamp = String.valueOf(System.currentTimeMillis() / 1000);
+            this.expiresAt = expiresAt;
+        }
+
+        String getNonceStr() {
+            return nonceStr;
+        }
+
+        String getTimestamp() {
+            return timestamp;
+        }
+
+        private boolean isValid(String ticket) {
+            return this.ticket != null && this.ticket.equals(ticket) && System.currentTimeMillis() < expiresAt;
+        }
+    }
+
+    private static final class CachedSignature {
+        private final Window window;
+        private final Signature signature;
+
+        private CachedSignature(Window window, Signature signature) {
+            this.window = window;
+            this.signature = signature;
+        }
+    }
+}
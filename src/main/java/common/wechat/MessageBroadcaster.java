@@ -0,0 +1,154 @@
+package common.wechat;
+
+import com.alibaba.fastjson.JSONObject;
+import common.tools.AppException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * 消息群发
+ * 1、concurrency个线程从消息流中逐条取出消息并发送,消息流按需生成,内存中不保留已发送的消息及结果;
+ * 2、callback在发送线程中调用,需线程安全;callback抛出的异常仅记录日志;
+ * 3、消息流抛出异常、每日配额用尽或接口熔断时停止取出新消息,待已取出的消息发送完成后抛出AppException.
+ *
+ * @author LongerHsiao
+ * @date 2018-05-02
+ */
+final class MessageBroadcaster {
+    private static Logger logger = LoggerFactory.getLogger(MessageBroadcaster.class);
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+        Thread thread = new Thread(r, "wechat-broadcast-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final int concurrency;
+
+    /**
+     * @param name 用于日志的群发类型
+     */
+    MessageBroadcaster(String name, int concurrency) {
+        this.name = name;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * 发送消息流中的所有消息后返回
+     *
+     * @param sender 发送单条消息,不抛出异常
+     */
+    MessageSendStats broadcast(Stream<JSONObject> messages, Function<JSONObject, MessageSendResult> sender,
+                               Consumer<MessageSendResult> callback) {
+        long start = System.currentTimeMillis();
+        Broadcast broadcast = new Broadcast(messages.iterator(), sender, callback);
+        CountDownLatch done = new CountDownLatch(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            executor.execute(() -> {
+                try {
+                    broadcast.run();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            broadcast.failure.compareAndSet(null, e);
+            Thread.currentThread().interrupt();
+        } finally {
+            messages.close();
+        }
+        MessageSendStats stats = new MessageSendStats(broadcast.succeeded.sum(), broadcast.failed.sum(),
+                System.currentTimeMillis() - start);
+        Throwable failure = broadcast.failure.get();
+        if (failure != null) {
+            logger.error("<<======MessageBroadcaster.broadcast:" + name + " stopped after " + stats.getTotal() + " messages", failure);
+            throw new AppException(name + " broadcast stopped: " + failure.getMessage());
+        }
+        return stats;
+    }
+
+    /**
+     * 一次群发,各发送线程共用消息流
+     */
+    private final class Broadcast {
+        private final Iterator<JSONObject> messages;
+        private final Function<JSONObject, MessageSendResult> sender;
+        private final Consumer<MessageSendResult> callback;
+        private final LongAdder succeeded = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        private Broadcast(Iterator<JSONObject> messages, Function<JSONObject, MessageSendResult> sender,
+                          Consumer<MessageSendResult> callback) {
+            this.messages = messages;
+            this.sender = sender;
+            this.callback = callback;
+        }
+
+        private void run() {
+            JSONObject message;
+            while ((message = next()) != null) {
+                MessageSendResult result = sender.apply(message);
+                if (result.getErrcode() == QuotaExceededException.DAILY_LIMIT) {
+                    failure.compareAndSet(null, new QuotaExceededException(result.getErrcode(), result.getErrmsg()));
+                } else if (result.getErrcode() == CircuitOpenException.CIRCUIT_OPEN) {
+                    failure.compareAndSet(null, new CircuitOpenException(result.getErrmsg()));
+                }
+                if (result.isSuccess()) {
+                    succeeded.increment();
+                } else {
+                    failed.increment();
+                    logger.warn("<<======MessageBroadcaster.broadcast:" + name + ", touser=" + result.getTouser()
+                            + ", errcode=" + result.getErrcode() + ", errmsg=" + result.getErrmsg());
+                }
+                if (callback != null) {
+                    try {
+                        callback.accept(result);
+                    } catch (Exception e) {
+                        logger.error("<<======MessageBroadcaster.callback:" + name + ", touser=" + result.getTouser(), e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 取出下一条消息,消息流已结束或已中止时返回null
+         */
+        private JSONObject next() {
+            synchronized (messages) {
+                if (failure.get() != null) {
+                    return null;
+                }
+                try {
+                    while (messages.hasNext()) {
+                        JSONObject message = messages.next();
+                        if (message != null) {
+                            return message;
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package common.wechat;
+
+import common.tools.StringUtil;
+import common.wechat.cache.CacheManager;
+import common.wechat.message.WeChatRequestMessage;
+import common.wechat.util.ConfigBuilder;
+import org.apache.commons.codec.binary.Base64;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 重复推送过滤
+ * 1、普通消息以MsgId为key,事件以FromUserName+CreateTime为key;
+ * 2、messageDedupeSecond内同一key只处理一次,重复推送等待首次处理完成并返回相同的回复;
+ * 3、本地记录按写入顺序过期,超过messageDedupeSize时淘汰最早的条目;
+ * 4、messageDedupeRedis为true且启用了外部缓存时,以redis记录供集群共享.
+ *
+ * @author LongerHsiao
+ * @date 2018-04-12
+ */
+public final class MessageDeduplicator {
+    private MessageDeduplicator() {
+        init();
+    }
+
+    private static class MessageDeduplicatorHolder {
+        private static final MessageDeduplicator INSTANCE = new MessageDeduplicator();
+    }
+
+    public static MessageDeduplicator getInstance() {
+        return MessageDeduplicatorHolder.INSTANCE;
+    }
+
+    // redis中处理中的占位值,不属于base64字符集
+    private static final String PENDING = "?";
+    private static final long POLL_MILLIS = 50L;
+
+    private int maxSize = 10000;
+    private long windowMillis = 30 * 1000L;
+    private long waitMillis = 4000L;
+    private CacheManager cacheManager;
+    private String cacheKeyPrefix;
+    private LinkedHashMap<String, Pending> entries;
+
+    private final LongAdder duplicates = new LongAdder();
+
+    private void init() {
+        Properties prop = ConfigBuilder.getInstance().init(WeChatPropertiesFile.filename);
+        if (!StringUtil.isEmpty(prop.getProperty("messageDedupeSize"))) {
+            maxSize = Integer.parseInt(prop.getProperty("messageDedupeSize"));
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("messageDedupeSecond"))) {
+            windowMillis = Integer.parseInt(prop.getProperty("messageDedupeSecond")) * 1000L;
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("messageDedupeWaitMillis"))) {
+            waitMillis = Long.parseLong(prop.getProperty("messageDedupeWaitMillis"));
+        }
+        entries = new LinkedHashMap<String, Pending>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Pending> eldest) {
+                return size() > maxSize;
+            }
+        };
+        CacheManager manager = CacheManager.getInstance();
+        if (manager.cacheOn && Boolean.parseBoolean(prop.getProperty("messageDedupeRedis"))) {
+            String rootKey = prop.getProperty("rootKey");
+            if (StringUtil.isEmpty(rootKey)) {
+                throw new IllegalArgumentException("<<======rootKey could not be null");
+            }
+            cacheManager = manager;
+            cacheKeyPrefix = (rootKey.endsWith(".") ? rootKey : rootKey + ".") + "MSG.";
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0 && windowMillis > 0;
+    }
+
+    /**
+     * 消息的去重key,未启用或无法识别时返回null
+     */
+    String keyOf(WeChatRequestMessage message) {
+        if (!isEnabled()) {
+            return null;
+        }
+        if (!StringUtil.isEmpty(message.getMsgId())) {
+            return message.getMsgId();
+        }
+        if (StringUtil.isEmpty(message.getFromUserName()) || message.getCreateTime() == 0) {
+            return null;
+        }
+        return message.getFromUserName() + "#" + message.getCreateTime();
+    }
+
+    /**
+     * 登记首次处理
+     *
+     * @return 首次推送返回true,重复推送返回false
+     */
+    boolean tryBegin(String key) {
+        boolean first;
+        if (cacheManager != null) {
+            first = cacheManager.tryLock(cacheKeyPrefix + key, PENDING, windowMillis);
+        } else {
+            first = beginLocal(key);
+        }
+        if (!first) {
+            duplicates.increment();
+        }
+        return first;
+    }
+
+    private synchronized boolean beginLocal(String key) {
+        long now = System.currentTimeMillis();
+        Iterator<Pending> iterator = entries.values().iterator();
+        while (iterator.hasNext() && iterator.next().expiresAt <= now) {
+            iterator.remove();
+        }
+        if (entries.containsKey(key)) {
+            return false;
+        }
+        entries.put(key, new Pending(now + windowMillis));
+        return true;
+    }
+
+    /**
+     * 等待首次处理的回复,最长等待messageDedupeWaitMillis
+     *
+     * @return 首次处理的回复,超时或首次处理失败时返回null
+     */
+    byte[] awaitReply(String key) {
+        if (cacheManager != null) {
+            return awaitRemote(key);
+        }
+        Pending pending;
+        synchronized (this) {
+            pending = entries.get(key);
+        }
+        if (pending == null) {
+            return null;
+        }
+        try {
+            return pending.reply.get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private byte[] awaitRemote(String key) {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (true) {
+            String value = cacheManager.getValue(cacheKeyPrefix + key);
+            if (value == null) {
+                return null;
+            }
+            if (!PENDING.equals(value)) {
+                return Base64.decodeBase64(value);
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return null;
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 记录首次处理的回复
+     *
+     * @param reply 未加密的回复,为null表示处理失败,允许后续推送重新处理
+     */
+    void complete(String key, byte[] reply) {
+        if (cacheManager != null) {
+            if (reply == null) {
+                cacheManager.deleteValue(cacheKeyPrefix + key);
+            } else {
+                cacheManager.setValue(cacheKeyPrefix + key, Base64.encodeBase64String(reply),
+                        (int) Math.max(1, windowMillis / 1000));
+            }
+            return;
+        }
+        Pending pending;
+        synchronized (this) {
+            pending = reply == null ? entries.remove(key) : entries.get(key);
+        }
+        if (pending != null) {
+            pending.reply.complete(reply);
+        }
+    }
+
+    /**
+     * 累计过滤的重复推送数
+     */
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    private static final class Pending {
+        private final long expiresAt;
+        private final CompletableFuture<byte[]> reply = new CompletableFuture<>();
+
+        private Pending(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package common.wechat;
+
+import java.io.Serializable;
+
+/**
+ * 异步消息处理情况
+ *
+ * @author LongerHsiao
+ * @date 2018-03-14
+ */
+public class MessageDispatchStats implements Serializable {
+    private static final long serialVersionUID = -4127603382114527170L;
+    private final long submitted;
+    private final long rejected;
+    private final long callerRuns;
+    private final long dropped;
+    private final long completed;
+    private final long failed;
+    private final int queued;
+    private final int active;
+
+    MessageDispatchStats(long submitted, long rejected, long callerRuns, long dropped,
+                         long completed, long failed, int queued, int active) {
+        this.submitted = submitted;
+        this.rejected = rejected;
+        this.callerRuns = callerRuns;
+        this.dropped = dropped;
+        this.completed = completed;
+        this.failed = failed;
+        this.queued = queued;
+        this.active = active;
+    }
+
+    /**
+     * 累计提交的消息数
+     */
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * 队列已满被拒绝的消息数
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * 被拒绝后在请求线程中处理的消息数
+     */
+    public long getCallerRuns() {
+        return callerRuns;
+    }
+
+    /**
+     * 被拒绝后丢弃的消息数
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * 处理异常或客服消息发送失败的消息数
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * 排队中的消息数
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * 处理中的消息数
+     */
+    public int getActive() {
+        return active;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageDispatchStats{" +
+                "submitted=" + submitted +
+                ", rejected=" + rejected +
+                ", callerRuns=" + callerRuns +
+                ", dropped=" + dropped +
+                ", completed=" + completed +
+                ", failed=" + failed +
+                ", queued=" + queued +
+                ", active=" + active +
+                '}';
+    }
+}
@@ -0,0 +1,220 @@
+package common.wechat;
+
+import com.alibaba.fastjson.JSONObject;
+import common.tools.StringUtil;
+import common.wechat.message.WeChatMessageHandler;
+import common.wechat.message.WeChatRequestMessage;
+import common.wechat.util.ConfigBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * @api MessageRouter 4、微信消息路由
+ * @apiGroup Servlet
+ * @apiName MessageRouter
+ * @apiVersion 1.0.0
+ * @apiParam {String} messageHandler 兜底的WeChatMessageHandler实现类全限定名[需有无参构造方法，处理未匹配到其他路由的消息]
+ * @apiParam {String} rewardPatterns 转发路径配置json[兼容旧配置，键为textReply/default/subscribe/unSubscribe/scanCodeWaitMsg/scan/view/eventDefault或菜单点击事件的EventKey]
+ * @apiDescription 按(MsgType, Event, EventKey)查找处理方，依次回退到(MsgType, Event, *)、(MsgType, *, *)、(*, *, *)。<br/>
+ * 路由表在注册时编译为嵌套的HashMap，查找时不拼接字符串；处理方为进程内的WeChatMessageHandler时直接调用，为转发路径时由RequestDispatcher转发。<br/>
+ * 代码中调用register注册的路由覆盖配置文件中的同一路由。<br/>
+ */
+public final class MessageRouter {
+    private static Logger logger = LoggerFactory.getLogger(MessageRouter.class);
+
+    private MessageRouter() {
+        init();
+    }
+
+    private static class MessageRouterHolder {
+        private static final MessageRouter INSTANCE = new MessageRouter();
+    }
+
+    public static MessageRouter getInstance() {
+        return MessageRouterHolder.INSTANCE;
+    }
+
+    private static final String EVENT = "event";
+
+    // 注册顺序保存的全部路由,每次注册后重新编译路由表
+    private final Map<List<String>, Route> routes = new LinkedHashMap<>();
+    private volatile Node table = new Node();
+
+    private void init() {
+        Properties prop = ConfigBuilder.getInstance().init(WeChatPropertiesFile.filename);
+        if (prop == null) {
+            return;
+        }
+        String patterns = prop.getProperty("rewardPatterns");
+        if (!StringUtil.isEmpty(patterns)) {
+            loadRewardPatterns(JSONObject.parseObject(patterns));
+        }
+        String handlerClass = prop.getProperty("messageHandler");
+        if (!StringUtil.isEmpty(handlerClass)) {
+            try {
+                register(null, null, null, (WeChatMessageHandler) Class.forName(handlerClass.trim()).newInstance());
+            } catch (Exception e) {
+                logger.error("<<======MessageRouter.init:messageHandler=" + handlerClass, e);
+            }
+        }
+    }
+
+    /**
+     * 将rewardPatterns中的转发路径注册为路由
+     * 除固定键外,其余键均视为菜单点击事件的EventKey
+     */
+    private void loadRewardPatterns(JSONObject patterns) {
+        for (Map.Entry<String, Object> entry : patterns.entrySet()) {
+            Route route = new Route(null, String.valueOf(entry.getValue()));
+            switch (entry.getKey()) {
+                case "textReply":
+                    put("text", null, null, route);
+                    break;
+                case "default":
+                    put(null, null, null, route);
+                    break;
+                case "eventDefault":
+                    put(EVENT, null, null, route);
+                    break;
+                case "subscribe":
+                    put(EVENT, "subscribe", null, route);
+                    break;
+                case "unSubscribe":
+                    put(EVENT, "unsubscribe", null, route);
+                    break;
+                case "scanCodeWaitMsg":
+                    put(EVENT, "scancode_waitmsg", null, route);
+                    break;
+                case "scan":
+                    put(EVENT, "SCAN", null, route);
+                    break;
+                case "view":
+                    put(EVENT, "VIEW", null, route);
+                    break;
+                default:
+                    put(EVENT, "CLICK", entry.getKey(), route);
+            }
+        }
+        compile();
+    }
+
+    /**
+     * 注册进程内处理方
+     *
+     * @param msgType  消息类型,为null时匹配全部;event不为null时固定为event
+     * @param event    事件类型,为null时匹配全部
+     * @param eventKey 事件key,为null时匹配全部
+     */
+    public void register(String msgType, String event, String eventKey, WeChatMessageHandler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("<<======handler could not be null");
+        }
+        register(msgType, event, eventKey, new Route(handler, null));
+    }
+
+    /**
+     * 注册转发路径
+     */
+    public void register(String msgType, String event, String eventKey, String forwardPath) {
+        if (StringUtil.isEmpty(forwardPath)) {
+            throw new IllegalArgumentException("<<======forwardPath could not be null");
+        }
+        register(msgType, event, eventKey, new Route(null, forwardPath));
+    }
+
+    private synchronized void register(String msgType, String event, String eventKey, Route route) {
+        put(msgType, event, eventKey, route);
+        compile();
+    }
+
+    private synchronized void put(String msgType, String event, String eventKey, Route route) {
+        if (event == null && eventKey != null) {
+            throw new IllegalArgumentException("<<======event could not be null when eventKey is specified");
+        }
+        if (event != null) {
+            msgType = EVENT;
+        }
+        routes.put(Arrays.asList(msgType, event, eventKey), route);
+    }
+
+    private synchronized void compile() {
+        Node root = new Node();
+        for (Map.Entry<List<String>, Route> entry : routes.entrySet()) {
+            Node node = root;
+            for (String part : entry.getKey()) {
+                if (part == null) {
+                    break;
+                }
+                node = node.children.computeIfAbsent(part, k -> new Node());
+            }
+            node.route = entry.getValue();
+        }
+        table = root;
+    }
+
+    /**
+     * 查找消息的处理方,未匹配时返回null
+     */
+    public Route route(WeChatRequestMessage message) {
+        Node root = table;
+        Node type = child(root, message.getMsgType());
+        if (type != null) {
+            Node event = child(type, message.getEvent());
+            if (event != null) {
+                Node key = child(event, message.getEventKey());
+                if (key != null && key.route != null) {
+                    return key.route;
+                }
+                if (event.route != null) {
+                    return event.route;
+                }
+            }
+            if (type.route != null) {
+                return type.route;
+            }
+        }
+        return root.route;
+    }
+
+    private static Node child(Node node, String part) {
+        return part == null ? null : node.children.get(part);
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private Route route;
+    }
+
+    /**
+     * 路由目标,进程内处理方与转发路径二者之一
+     */
+    public static final class Route {
+        private final WeChatMessageHandler handler;
+        private final String forwardPath;
+
+        private Route(WeChatMessageHandler handler, String forwardPath) {
+            this.handler = handler;
+            this.forwardPath = forwardPath;
+        }
+
+        public WeChatMessageHandler getHandler() {
+            return handler;
+        }
+
+        public String getForwardPath() {
+            return forwardPath;
+        }
+
+        @Override
+        public String toString() {
+            return handler != null ? handler.getClass().getName() : forwardPath;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package common.wechat;
+
+import java.io.Serializable;
+
+/**
+ * 单条消息的发送结果
+ *
+ * @author LongerHsiao
+ * @date 2018-04-28
+ */
+public class MessageSendResult implements Serializable {
+    private static final long serialVersionUID = 5830931527047738412L;
+    private final String touser;
+    private final int errcode;
+    private final String errmsg;
+    private final long msgid;
+
+    MessageSendResult(String touser, int errcode, String errmsg, long msgid) {
+        this.touser = touser;
+        this.errcode = errcode;
+        this.errmsg = errmsg;
+        this.msgid = msgid;
+    }
+
+    public boolean isSuccess() {
+        return errcode == 0;
+    }
+
+    public String getTouser() {
+        return touser;
+    }
+
+    /**
+     * 微信服务器返回的错误码,请求异常时为-1,接口熔断时为-2
+     */
+    public int getErrcode() {
+        return errcode;
+    }
+
+    public String getErrmsg() {
+        return errmsg;
+    }
+
+    /**
+     * 发送成功时的消息id
+     */
+    public long getMsgid() {
+        return msgid;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageSendResult{" +
+                "touser='" + touser + '\'' +
+                ", errcode=" + errcode +
+                ", errmsg='" + errmsg + '\'' +
+                ", msgid=" + msgid +
+                '}';
+    }
+}
@@ -0,0 +1,50 @@
+package common.wechat;
+
+import java.io.Serializable;
+
+/**
+ * 消息群发情况
+ *
+ * @author LongerHsiao
+ * @date 2018-04-28
+ */
+public class MessageSendStats implements Serializable {
+    private static final long serialVersionUID = -2291745301867319254L;
+    private final long succeeded;
+    private final long failed;
+    private final long elapsedMillis;
+
+    MessageSendStats(long succeeded, long failed, long elapsedMillis) {
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * 已发送的消息数
+     */
+    public long getTotal() {
+        return succeeded + failed;
+    }
+
+    public long getSucceeded() {
+        return succeeded;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageSendStats{" +
+                "succeeded=" + succeeded +
+                ", failed=" + failed +
+                ", elapsedMillis=" + elapsedMillis +
+                '}';
+    }
+}
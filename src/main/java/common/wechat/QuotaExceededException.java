@@ -0,0 +1,36 @@
+package common.wechat;
+
+import java.io.IOException;
+
+/**
+ * 调用超出本地配额,未请求微信服务器
+ *
+ * @author LongerHsiao
+ * @date 2018-05-06
+ */
+public class QuotaExceededException extends IOException {
+    private static final long serialVersionUID = 3106284217339523716L;
+
+    /**
+     * 接口调用超过每日限额
+     */
+    public static final int DAILY_LIMIT = 45009;
+    /**
+     * 接口调用过于频繁
+     */
+    public static final int RATE_LIMIT = 45011;
+
+    private final int errcode;
+
+    QuotaExceededException(int errcode, String message) {
+        super(message);
+        this.errcode = errcode;
+    }
+
+    /**
+     * 与微信服务器含义一致的错误码
+     */
+    public int getErrcode() {
+        return errcode;
+    }
+}
@@ -0,0 +1,381 @@
+package common.wechat;
+
+import common.tools.StringUtil;
+import common.wechat.cache.CacheManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @api QuotaGovernor 6、接口调用配额
+ * @apiGroup Static Util
+ * @apiName QuotaGovernor
+ * @apiVersion 1.0.0
+ * @apiParam {Number} quota.{ENDPOINT}.qps 接口的每秒调用上限[ENDPOINT为WeChatUrlFormat的名称，如quota.GET_USER_INFO.qps，未配置或为0时不限制]
+ * @apiParam {Number} quota.{ENDPOINT}.daily 接口的每日调用上限[未配置或为0时不限制，按北京时间零点重置]
+ * @apiParam {String} quota.{ENDPOINT}.mode 超出每秒上限时的处理方式[默认取quotaMode]
+ * @apiParam {String} quotaMode 超出每秒上限时的处理方式[默认wait：至多等待quotaWaitMillis；failFast：立即失败；queue：按到达顺序排队，排队数超过quotaQueueSize时失败]
+ * @apiParam {Number} quotaWaitMillis wait方式的最长等待时长[默认1000毫秒]
+ * @apiParam {Number} quotaQueueSize queue方式每个接口的排队上限[默认100]
+ * @apiParam {Boolean} quotaRedis 是否在redis中计量，使集群内所有节点共用配额[默认false，需启用缓存]
+ * @apiParam {Number} quotaBulkRatio 群发、批量获取用户信息等批量调用可使用的每日配额比例[默认0.8，余下部分留给OAuth等交互调用]
+ * @apiDescription 按公众号及接口限制对微信服务器的调用，超出配额时抛出QuotaExceededException(45009/45011)而不请求微信服务器。<br/>
+ * 通过WeChatClient.getQuotaGovernor()查看每日已用配额，批量任务可据此自行降速。<br/>
+ */
+public final class QuotaGovernor {
+    private static Logger logger = LoggerFactory.getLogger(QuotaGovernor.class);
+
+    private static final ZoneId ZONE = ZoneId.of("Asia/Shanghai");
+    private static final int DAILY_KEY_SECOND = 2 * 24 * 3600;
+
+    /**
+     * 超出每秒上限时的处理方式
+     */
+    public enum Mode {
+        WAIT, FAIL_FAST, QUEUE
+    }
+
+    /**
+     * 调用类型,批量调用仅可使用quotaBulkRatio比例的每日配额
+     */
+    enum Priority {
+        INTERACTIVE, BULK
+    }
+
+    private final String appId;
+    private final CacheManager cacheManager;
+    private final String cacheKeyRoot;
+    private long waitNanos = TimeUnit.MILLISECONDS.toNanos(1000);
+    private int queueSize = 100;
+    private double bulkRatio = 0.8;
+    private final Map<WeChatUrlFormat, Endpoint> endpoints = new EnumMap<>(WeChatUrlFormat.class);
+
+    /**
+     * @param cacheKeyRoot 缓存key前缀,未启用缓存时为null
+     */
+    QuotaGovernor(String appId, Properties prop, String cacheKeyRoot) {
+        this.appId = appId;
+        this.cacheManager = CacheManager.getInstance();
+        boolean redis = Boolean.parseBoolean(prop.getProperty("quotaRedis"));
+        if (redis && cacheKeyRoot == null) {
+            logger.warn("<<======QuotaGovernor:quotaRedis requires cache, metering locally for " + appId);
+            redis = false;
+        }
+        this.cacheKeyRoot = redis ? cacheKeyRoot + "QUOTA." : null;
+        if (!StringUtil.isEmpty(prop.getProperty("quotaWaitMillis"))) {
+            waitNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(prop.getProperty("quotaWaitMillis")));
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("quotaQueueSize"))) {
+            queueSize = Integer.parseInt(prop.getProperty("quotaQueueSize"));
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("quotaBulkRatio"))) {
+            bulkRatio = Double.parseDouble(prop.getProperty("quotaBulkRatio"));
+        }
+        Mode defaultMode = parseMode(prop.getProperty("quotaMode"), Mode.WAIT);
+        for (WeChatUrlFormat format : WeChatUrlFormat.values()) {
+            String prefix = "quota." + format.name() + ".";
+            int qps = StringUtil.isEmpty(prop.getProperty(prefix + "qps")) ?
+                    0 : Integer.parseInt(prop.getProperty(prefix + "qps"));
+            long daily = StringUtil.isEmpty(prop.getProperty(prefix + "daily")) ?
+                    0 : Long.parseLong(prop.getProperty(prefix + "daily"));
+            Mode mode = parseMode(prop.getProperty(prefix + "mode"), defaultMode);
+            endpoints.put(format, new Endpoint(format, qps, daily, mode));
+        }
+    }
+
+    private static Mode parseMode(String value, Mode defaultMode) {
+        if (StringUtil.isEmpty(value)) {
+            return defaultMode;
+        }
+        switch (value.trim()) {
+            case "wait":
+                return Mode.WAIT;
+            case "failFast":
+                return Mode.FAIL_FAST;
+            case "queue":
+                return Mode.QUEUE;
+            default:
+                throw new IllegalArgumentException("<<======unknown quota mode " + value);
+        }
+    }
+
+    /**
+     * 调用接口前取得配额
+     * 先计入每日次数,每日配额用尽时直接失败,不占用每秒配额也不等待;未取得每秒配额时退还已计入的每日次数
+     *
+     * @throws QuotaExceededException 超出每秒上限(45011)或每日上限(45009)
+     */
+    void acquire(WeChatUrlFormat format, Priority priority) throws QuotaExceededException {
+        Endpoint endpoint = endpoints.get(format);
+        String day = today();
+        boolean counted = endpoint.countDaily(priority, day);
+        try {
+            endpoint.acquireRate();
+        } catch (QuotaExceededException e) {
+            if (counted) {
+                endpoint.refundDaily(day);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 当日已用次数
+     */
+    public long getDailyUsage(WeChatUrlFormat format) {
+        return endpoints.get(format).getDailyUsage();
+    }
+
+    /**
+     * 每日上限,为0时不限制
+     */
+    public long getDailyLimit(WeChatUrlFormat format) {
+        return endpoints.get(format).dailyLimit;
+    }
+
+    /**
+     * 当日剩余次数,不限制时返回-1
+     */
+    public long getDailyRemaining(WeChatUrlFormat format) {
+        Endpoint endpoint = endpoints.get(format);
+        if (endpoint.dailyLimit <= 0) {
+            return -1;
+        }
+        return Math.max(0, endpoint.dailyLimit - endpoint.getDailyUsage());
+    }
+
+    private static String today() {
+        return LocalDate.now(ZONE).format(DateTimeFormatter.BASIC_ISO_DATE);
+    }
+
+    private static long nextMidnightMillis() {
+        return LocalDate.now(ZONE).plusDays(1).atStartOfDay(ZONE).toInstant().toEpochMilli();
+    }
+
+    private final class Endpoint {
+        private final WeChatUrlFormat format;
+        private final int qps;
+        private final long dailyLimit;
+        private final Mode mode;
+        private final LocalBucket bucket;
+        private final ReentrantLock queueLock = new ReentrantLock(true);
+        private final AtomicInteger queued = new AtomicInteger();
+        private long dailyCount;
+        private long dayEndsAt;
+
+        private Endpoint(WeChatUrlFormat format, int qps, long dailyLimit, Mode mode) {
+            this.format = format;
+            this.qps = qps;
+            this.dailyLimit = dailyLimit;
+            this.mode = mode;
+            this.bucket = qps > 0 && cacheKeyRoot == null ? new LocalBucket(qps) : null;
+        }
+
+        private void acquireRate() throws QuotaExceededException {
+            if (qps <= 0) {
+                return;
+            }
+            switch (mode) {
+                case FAIL_FAST:
+                    if (!tryTake(0)) {
+                        throw rateLimited();
+                    }
+                    break;
+                case WAIT:
+                    if (!tryTake(waitNanos)) {
+                        throw rateLimited();
+                    }
+                    break;
+                case QUEUE:
+                    if (queued.incrementAndGet() > queueSize) {
+                        queued.decrementAndGet();
+                        throw rateLimited();
+                    }
+                    // 持锁等待令牌,按到达顺序放行
+                    queueLock.lock();
+                    try {
+                        tryTake(Long.MAX_VALUE);
+                    } finally {
+                        queueLock.unlock();
+                        queued.decrementAndGet();
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * 在maxWaitNanos内取得令牌
+         */
+        private boolean tryTake(long maxWaitNanos) throws QuotaExceededException {
+            if (bucket != null) {
+                long wait = bucket.reserve(maxWaitNanos);
+                if (wait < 0) {
+                    return false;
+                }
+                park(wait);
+                return true;
+            }
+            long start = System.nanoTime();
+            for (; ; ) {
+                long waitMillis;
+                try {
+                    waitMillis = cacheManager.acquireToken(cacheKeyRoot + format.name(), qps, qps);
+                } catch (RuntimeException e) {
+                    // redis不可用时不限制
+                    logger.error("<<======QuotaGovernor.tryTake:" + appId + "." + format.name() + ", " + e.getMessage());
+                    return true;
+                }
+                if (waitMillis <= 0) {
+                    return true;
+                }
+                long waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+                if (maxWaitNanos != Long.MAX_VALUE && System.nanoTime() - start + waitNanos > maxWaitNanos) {
+                    return false;
+                }
+                park(waitNanos);
+            }
+        }
+
+        /**
+         * @return 是否已计入,redis不可用时不限制且不计入
+         */
+        private boolean countDaily(Priority priority, String day) throws QuotaExceededException {
+            long limit = dailyLimit <= 0 ? Long.MAX_VALUE :
+                    priority == Priority.BULK ? (long) (dailyLimit * bulkRatio) : dailyLimit;
+            if (cacheKeyRoot == null) {
+                if (!countLocal(limit)) {
+                    throw dailyLimited(priority);
+                }
+                return true;
+            }
+            long count;
+            try {
+                count = cacheManager.incrementIfBelow(dailyKey(day), limit, DAILY_KEY_SECOND);
+            } catch (RuntimeException e) {
+                logger.error("<<======QuotaGovernor.countDaily:" + appId + "." + format.name() + ", " + e.getMessage());
+                return false;
+            }
+            if (count < 0) {
+                throw dailyLimited(priority);
+            }
+            return true;
+        }
+
+        /**
+         * 退还day当日已计入的一次,已跨日时不退还
+         */
+        private void refundDaily(String day) {
+            if (cacheKeyRoot == null) {
+                refundLocal(day);
+                return;
+            }
+            try {
+                cacheManager.decrement(dailyKey(day));
+            } catch (RuntimeException e) {
+                logger.error("<<======QuotaGovernor.refundDaily:" + appId + "." + format.name() + ", " + e.getMessage());
+            }
+        }
+
+        private synchronized boolean countLocal(long limit) {
+            rollDay();
+            if (dailyCount >= limit) {
+                return false;
+            }
+            dailyCount++;
+            return true;
+        }
+
+        private synchronized void refundLocal(String day) {
+            rollDay();
+            if (dailyCount > 0 && day.equals(today())) {
+                dailyCount--;
+            }
+        }
+
+        private long getDailyUsage() {
+            if (cacheKeyRoot != null) {
+                return cacheManager.getCount(dailyKey(today()));
+            }
+            synchronized (this) {
+                rollDay();
+                return dailyCount;
+            }
+        }
+
+        private void rollDay() {
+            long now = System.currentTimeMillis();
+            if (now >= dayEndsAt) {
+                dailyCount = 0;
+                dayEndsAt = nextMidnightMillis();
+            }
+        }
+
+        private String dailyKey(String day) {
+            return cacheKeyRoot + format.name() + "." + day;
+        }
+
+        private QuotaExceededException rateLimited() {
+            return new QuotaExceededException(QuotaExceededException.RATE_LIMIT,
+                    appId + "." + format.name() + " exceeds " + qps + " calls per second");
+        }
+
+        private QuotaExceededException dailyLimited(Priority priority) {
+            return new QuotaExceededException(QuotaExceededException.DAILY_LIMIT,
+                    appId + "." + format.name() + " exceeds daily quota" + (priority == Priority.BULK ? " for bulk calls" : ""));
+        }
+    }
+
+    private static void park(long nanos) throws QuotaExceededException {
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new QuotaExceededException(QuotaExceededException.RATE_LIMIT, "interrupted while waiting for quota");
+            }
+        }
+    }
+
+    /**
+     * 本地令牌桶,桶容量为每秒上限
+     * 令牌不足时预支后续令牌,调用方等待至预支的令牌补充完成
+     */
+    private static final class LocalBucket {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        private LocalBucket(int qps) {
+            this.tokensPerNano = qps / 1e9;
+            this.capacity = qps;
+            this.tokens = qps;
+        }
+
+        /**
+         * @return 需要等待的纳秒数,超过maxWaitNanos时不预支并返回-1
+         */
+        private synchronized long reserve(long maxWaitNanos) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+            refilledAt = now;
+            long wait = tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            tokens -= 1;
+            return wait;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package common.wechat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 每秒请求数限制
+ * 为每次请求预留发送时刻,未到该时刻时等待;空闲期间不积累配额
+ *
+ * @author LongerHsiao
+ * @date 2018-05-02
+ */
+final class RateLimiter {
+    private final long intervalNanos;
+    private final AtomicLong nextPermitNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param qps 每秒请求数上限,为0时不限制
+     */
+    RateLimiter(int qps) {
+        this.intervalNanos = qps > 0 ? TimeUnit.SECONDS.toNanos(1) / qps : 0;
+    }
+
+    /**
+     * 等待至预留的发送时刻
+     *
+     * @throws QuotaExceededException 等待期间线程被中断(45011),中断标记保留
+     */
+    void acquire() throws QuotaExceededException {
+        if (intervalNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long permit;
+        for (; ; ) {
+            long next = nextPermitNanos.get();
+            permit = next - now > 0 ? next : now;
+            if (nextPermitNanos.compareAndSet(next, permit + intervalNanos)) {
+                break;
+            }
+        }
+        long waitNanos;
+        while ((waitNanos = permit - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(waitNanos);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new QuotaExceededException(QuotaExceededException.RATE_LIMIT, "interrupted while waiting for qps");
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package common.wechat;
+
+import com.alibaba.fastjson.JSONObject;
+import common.tools.StringUtil;
+
+import java.util.Properties;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * @api TemplateMessageSender 4、模板消息群发
+ * @apiGroup Static Util
+ * @apiName TemplateMessageSender
+ * @apiVersion 1.0.0
+ * @apiParam {Number} templateConcurrency 群发模板消息时并行请求数[默认8，请求经由共享连接池及httpMaxPerAccount限制]
+ * @apiParam {Number} templateQps 群发模板消息的每秒请求数上限[默认200，为0时不限制]
+ * @apiDescription 按需从消息流中取出模板消息并发送，内存中不保留已发送的消息及结果，每条消息的结果经由回调通知。<br/>
+ * access_token被判定无效(40001/40014/42001)时重新获取后重试一次。<br/>
+ */
+public final class TemplateMessageSender {
+    private final WeChatClient client;
+    private final MessageBroadcaster broadcaster;
+    private final RateLimiter rateLimiter;
+
+    TemplateMessageSender(WeChatClient client, Properties prop) {
+        this.client = client;
+        int concurrency = StringUtil.isEmpty(prop.getProperty("templateConcurrency")) ?
+                8 : Integer.parseInt(prop.getProperty("templateConcurrency"));
+        int qps = StringUtil.isEmpty(prop.getProperty("templateQps")) ?
+                200 : Integer.parseInt(prop.getProperty("templateQps"));
+        broadcaster = new MessageBroadcaster("template message", concurrency);
+        rateLimiter = new RateLimiter(qps);
+    }
+
+    /**
+     * 发送模板消息,所有消息发送完成后返回
+     * 1、templateConcurrency个线程从messages中逐条取出消息,消息流按需生成;
+     * 2、同一公众号的所有群发共用templateQps配额;
+     * 3、callback在发送线程中调用,需线程安全;callback抛出的异常仅记录日志;
+     * 4、消息流抛出异常、每日配额用尽或接口熔断时停止取出新消息,待已取出的消息发送完成后抛出AppException.
+     *
+     * @param messages 模板消息json,如{"touser":"OPENID","template_id":"ID","url":"URL","data":{...}}
+     * @param callback 每条消息的发送结果,可为null
+     */
+    public MessageSendStats send(Stream<JSONObject> messages, Consumer<MessageSendResult> callback) {
+        return broadcaster.broadcast(messages, this::sendOne, callback);
+    }
+
+    private MessageSendResult sendOne(JSONObject message) {
+        String touser = message.getString("touser");
+        try {
+            rateLimiter.acquire();
+            JSONObject jsonObject = client.postWithAccessToken(WeChatUrlFormat.SEND_TEMPLATE_MSG, message.toJSONString(),
+                    QuotaGovernor.Priority.BULK);
+            if (jsonObject == null) {
+                return new MessageSendResult(touser, -1, "empty response", 0);
+            }
+            return new MessageSendResult(touser, jsonObject.getIntValue("errcode"),
+                    jsonObject.getString("errmsg"), jsonObject.getLongValue("msgid"));
+        } catch (QuotaExceededException e) {
+            return new MessageSendResult(touser, e.getErrcode(), e.getMessage(), 0);
+        } catch (CircuitOpenException e) {
+            return new MessageSendResult(touser, CircuitOpenException.CIRCUIT_OPEN, e.getMessage(), 0);
+        } catch (Exception e) {
+            return new MessageSendResult(touser, -1, e.getMessage(), 0);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package common.wechat;
+
+import common.tools.AppException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 凭证管理器
+ * 1、读取方直接读取不可变快照,不加锁;
+ * 2、同一时刻只允许一个线程向微信服务器获取凭证,其余线程等待该次结果;
+ * 3、在凭证失效前由后台线程提前刷新,避免请求线程等待;后台线程由各公众号单独持有,互不阻塞.
+ *
+ * @author LongerHsiao
+ * @date 2018-03-02
+ */
+final class TokenManager<T extends ExpirableToken> {
+    private static Logger logger = LoggerFactory.getLogger(TokenManager.class);
+
+    // 刷新失败后的重试间隔
+    private static final long RETRY_DELAY_MILLIS = 30 * 1000L;
+    private static final long MIN_DELAY_MILLIS = 1000L;
+
+    /**
+     * 凭证加载器
+     * 返回null表示本次未取得新凭证,继续沿用previous
+     */
+    interface Loader<T> {
+        T load(T previous) throws Exception;
+    }
+
+    private final String name;
+    private final Loader<T> loader;
+    private final long refreshAheadMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile T current;
+    private final AtomicReference<CompletableFuture<T>> inFlight = new AtomicReference<>();
+    private final AtomicReference<ScheduledFuture<?>> scheduled = new AtomicReference<>();
+
+    /**
+     * @param scheduler 执行提前刷新的后台线程
+     */
+    TokenManager(String name, Loader<T> loader, int refreshAheadSecond, ScheduledExecutorService scheduler) {
+        this.name = name;
+        this.scheduler = scheduler;
+        this.loader = loader;
+        this.refreshAheadMillis = refreshAheadSecond * 1000L;
+    }
+
+    /**
+     * 获取凭证值
+     * 快照有效时直接返回,否则等待(或发起)唯一的一次刷新
+     */
+    String get() {
+        T snapshot = current;
+        if (snapshot == null || snapshot.isExpired()) {
+            snapshot = refresh(false);
+        }
+        return snapshot == null ? null : snapshot.getValue();
+    }
+
+    /**
+     * 快照有效时返回凭证值,否则返回null
+     */
+    String peek() {
+        T snapshot = current;
+        return snapshot == null || snapshot.isExpired() ? null : snapshot.getValue();
+    }
+
+    /**
+     * 丢弃当前快照,下次读取时重新加载
+     */
+    void invalidate() {
+        current = null;
+    }
+
+    /**
+     * 凭证被微信服务器判定无效后重新加载
+     * 若快照已不是rejected(其他线程已完成更换),直接返回当前快照
+     */
+    String renew(String rejected) {
+        T snapshot = current;
+        if (snapshot == null || snapshot.isExpired() || snapshot.getValue().equals(rejected)) {
+            snapshot = refresh(true);
+        }
+        return snapshot == null ? null : snapshot.getValue();
+    }
+
+    /**
+     * @param force 为false时,若其他线程已刷新出有效快照则不再重复加载
+     */
+    T refresh(boolean force) {
+        for (; ; ) {
+            CompletableFuture<T> future = inFlight.get();
+            if (future != null) {
+                return await(future);
+            }
+            CompletableFuture<T> created = new CompletableFuture<>();
+            if (inFlight.compareAndSet(null, created)) {
+                load(created, force);
+                return await(created);
+            }
+        }
+    }
+
+    private void load(CompletableFuture<T> future, boolean force) {
+        T previous = current;
+        if (!force && previous != null && !previous.isExpired()) {
+            inFlight.set(null);
+            future.complete(previous);
+            return;
+        }
+        try {
+            T loaded = loader.load(previous);
+            if (loaded != null) {
+                current = loaded;
+                schedule(loaded.getExpiresAt() - refreshAheadMillis - System.currentTimeMillis());
+            } else {
+                schedule(RETRY_DELAY_MILLIS);
+            }
+            inFlight.set(null);
+            future.complete(current);
+        } catch (Throwable e) {
+            logger.error("<<======TokenManager.load:" + name, e);
+            schedule(RETRY_DELAY_MILLIS);
+            inFlight.set(null);
+            future.completeExceptionally(e);
+        }
+    }
+
+    private T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof AppException) {
+                throw (AppException) e.getCause();
+            }
+            // 刷新失败时沿用旧快照
+            return current;
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        ScheduledFuture<?> next = scheduler.schedule(() -> {
+            try {
+                refresh(true);
+            } catch (Exception e) {
+                logger.error("<<======TokenManager.scheduledRefresh:" + name, e);
+            }
+        }, Math.max(delayMillis, MIN_DELAY_MILLIS), TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> previous = scheduled.getAndSet(next);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package common.wechat;
+
+import com.alibaba.fastjson.JSONException;
+import com.alibaba.fastjson.JSONObject;
+import common.tools.StringUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @api UpstreamGuard 7、接口重试及熔断
+ * @apiGroup Static Util
+ * @apiName UpstreamGuard
+ * @apiVersion 1.0.0
+ * @apiParam {Number} retryMaxAttempts 微信服务器繁忙(errcode -1)时的最多请求次数[默认3，含首次请求；GET请求的连接异常同样重试]
+ * @apiParam {Number} retryBaseMillis 重试的初始退避时长[默认100毫秒，每次翻倍，实际等待为0至退避时长间的随机值]
+ * @apiParam {Number} retryMaxMillis 重试的最长退避时长[默认2000毫秒]
+ * @apiParam {Number} breakerFailureThreshold 接口连续失败多少次后熔断[默认5，连接异常及errcode -1计为失败]
+ * @apiParam {Number} breakerOpenMillis 熔断时长[默认10000毫秒，到期后放行一次试探请求，成功则恢复，失败则继续熔断]
+ * @apiDescription 按公众号及接口解析微信服务器返回的errcode，繁忙时退避重试；连续失败时熔断，
+ * 熔断期间直接抛出CircuitOpenException，避免请求线程堆积在超时等待上。<br/>
+ * 超出本地配额(QuotaExceededException)不计为失败。<br/>
+ */
+public final class UpstreamGuard {
+    private static Logger logger = LoggerFactory.getLogger(UpstreamGuard.class);
+
+    /**
+     * 系统繁忙
+     */
+    static final int SYSTEM_BUSY = -1;
+
+    /**
+     * 单次请求
+     */
+    interface Request {
+        String execute() throws IOException;
+    }
+
+    private final String appId;
+    private int maxAttempts = 3;
+    private long baseMillis = 100L;
+    private long maxMillis = 2000L;
+    private int failureThreshold = 5;
+    private long openMillis = 10 * 1000L;
+    private final Map<WeChatUrlFormat, CircuitBreaker> breakers = new EnumMap<>(WeChatUrlFormat.class);
+
+    UpstreamGuard(String appId, Properties prop) {
+        this.appId = appId;
+        if (!StringUtil.isEmpty(prop.getProperty("retryMaxAttempts"))) {
+            maxAttempts = Math.max(1, Integer.parseInt(prop.getProperty("retryMaxAttempts")));
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("retryBaseMillis"))) {
+            baseMillis = Long.parseLong(prop.getProperty("retryBaseMillis"));
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("retryMaxMillis"))) {
+            maxMillis = Long.parseLong(prop.getProperty("retryMaxMillis"));
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("breakerFailureThreshold"))) {
+            failureThreshold = Integer.parseInt(prop.getProperty("breakerFailureThreshold"));
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("breakerOpenMillis"))) {
+            openMillis = Long.parseLong(prop.getProperty("breakerOpenMillis"));
+        }
+        for (WeChatUrlFormat format : WeChatUrlFormat.values()) {
+            breakers.put(format, new CircuitBreaker(format));
+        }
+    }
+
+    /**
+     * 执行请求并解析返回的json
+     * 1、熔断中时抛出CircuitOpenException;
+     * 2、errcode为-1时退避后重试;idempotent为true时连接异常及无法解析的响应同样重试;
+     * 3、请求次数用尽后返回最后一次的响应或抛出最后一次的异常.
+     *
+     * @param idempotent 请求是否可重复执行,POST请求可能已被微信服务器处理,连接异常时不重试
+     */
+    JSONObject call(WeChatUrlFormat format, boolean idempotent, Request request) throws IOException {
+        CircuitBreaker breaker = breakers.get(format);
+        for (int attempt = 1; ; attempt++) {
+            if (!breaker.allow()) {
+                throw new CircuitOpenException(appId + "." + format.name() + " is unavailable, circuit open");
+            }
+            JSONObject jsonObject;
+            try {
+                jsonObject = JSONObject.parseObject(request.execute());
+                if (jsonObject == null) {
+                    throw new IOException("empty response");
+                }
+            } catch (QuotaExceededException e) {
+                // 未请求微信服务器,不计为失败
+                throw e;
+            } catch (IOException | JSONException e) {
+                breaker.onFailure();
+                if (!idempotent || attempt >= maxAttempts) {
+                    throw e instanceof IOException ? (IOException) e : new IOException("invalid response", e);
+                }
+                logger.warn("<<======UpstreamGuard.call:" + appId + "." + format.name() + " attempt " + attempt
+                        + ", " + e.getMessage());
+                backoff(attempt);
+                continue;
+            }
+            if (jsonObject.getIntValue("errcode") != SYSTEM_BUSY) {
+                breaker.onSuccess();
+                return jsonObject;
+            }
+            breaker.onFailure();
+            if (attempt >= maxAttempts) {
+                return jsonObject;
+            }
+            logger.warn("<<======UpstreamGuard.call:" + appId + "." + format.name() + " attempt " + attempt
+                    + ", " + jsonObject.toJSONString());
+            backoff(attempt);
+        }
+    }
+
+    /**
+     * 接口是否熔断中
+     */
+    public boolean isOpen(WeChatUrlFormat format) {
+        return breakers.get(format).isOpen();
+    }
+
+    /**
+     * 指数退避,等待0至min(retryMaxMillis, retryBaseMillis*2^(attempt-1))间的随机时长
+     */
+    private void backoff(int attempt) throws IOException {
+        long ceiling = Math.min(maxMillis, baseMillis << Math.min(attempt - 1, 20));
+        long sleepMillis = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        try {
+            Thread.sleep(sleepMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while backing off");
+        }
+    }
+
+    /**
+     * 熔断器
+     * openUntil为0时闭合;到期后第一个请求将openUntil顺延并作为试探请求放行,
+     * 试探请求未返回结果(如超出本地配额)时,下次到期后再放行一个.
+     */
+    private final class CircuitBreaker {
+        private final WeChatUrlFormat format;
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong openUntil = new AtomicLong();
+
+        private CircuitBreaker(WeChatUrlFormat format) {
+            this.format = format;
+        }
+
+        private boolean allow() {
+            long until = openUntil.get();
+            if (until == 0) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            return now >= until && openUntil.compareAndSet(until, now + openMillis);
+        }
+
+        private void onSuccess() {
+            consecutiveFailures.set(0);
+            if (openUntil.getAndSet(0) != 0) {
+                logger.info("<<======UpstreamGuard.CircuitBreaker:" + appId + "." + format.name() + " closed");
+            }
+        }
+
+        private void onFailure() {
+            if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+                if (openUntil.getAndSet(System.currentTimeMillis() + openMillis) == 0) {
+                    logger.error("<<======UpstreamGuard.CircuitBreaker:" + appId + "." + format.name() + " opened after "
+                            + consecutiveFailures.get() + " consecutive failures");
+                }
+            }
+        }
+
+        private boolean isOpen() {
+            long until = openUntil.get();
+            return until != 0 && System.currentTimeMillis() < until;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package common.wechat;
+
+import com.alibaba.fastjson.JSON;
+import common.tools.StringUtil;
+import common.wechat.cache.CacheManager;
+import common.wechat.util.ConfigBuilder;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 用户信息缓存
+ * 1、以openid为key,按userInfoCacheSecond过期,超过userInfoCacheSize时淘汰最久未访问的条目;
+ * 2、userInfoCacheRedis为true且启用了外部缓存时,以redis作为二级缓存供集群共享;
+ * 3、收到关注/取消关注事件时由WeChatMessageServlet剔除对应条目;
+ * 4、写入及读取时均复制实例,调用方修改返回的对象不影响缓存.
+ *
+ * @author LongerHsiao
+ * @date 2018-03-22
+ */
+public final class UserInfoCache {
+    private UserInfoCache() {
+        init();
+    }
+
+    private static class UserInfoCacheHolder {
+        private static final UserInfoCache INSTANCE = new UserInfoCache();
+    }
+
+    public static UserInfoCache getInstance() {
+        return UserInfoCacheHolder.INSTANCE;
+    }
+
+    private int maxSize = 10000;
+    private int secondsToLive = 300;
+    private CacheManager cacheManager;
+    private String cacheKeyPrefix;
+    private LinkedHashMap<String, CachedUserInfo> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private void init() {
+        Properties prop = ConfigBuilder.getInstance().init(WeChatPropertiesFile.filename);
+        if (!StringUtil.isEmpty(prop.getProperty("userInfoCacheSize"))) {
+            maxSize = Integer.parseInt(prop.getProperty("userInfoCacheSize"));
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("userInfoCacheSecond"))) {
+            secondsToLive = Integer.parseInt(prop.getProperty("userInfoCacheSecond"));
+        }
+        entries = new LinkedHashMap<String, CachedUserInfo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedUserInfo> eldest) {
+                if (size() > maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+        CacheManager manager = CacheManager.getInstance();
+        if (manager.cacheOn && Boolean.parseBoolean(prop.getProperty("userInfoCacheRedis"))) {
+            String rootKey = prop.getProperty("rootKey");
+            if (StringUtil.isEmpty(rootKey)) {
+                throw new IllegalArgumentException("<<======rootKey could not be null");
+            }
+            cacheManager = manager;
+            cacheKeyPrefix = (rootKey.endsWith(".") ? rootKey : rootKey + ".") + "USER_INFO.";
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0 && secondsToLive > 0;
+    }
+
+    public WeChatUserInfo get(String openid) {
+        if (!isEnabled() || StringUtil.isEmpty(openid)) {
+            return null;
+        }
+        CachedUserInfo entry;
+        synchronized (entries) {
+            entry = entries.get(openid);
+            if (entry != null && entry.isExpired()) {
+                entries.remove(openid);
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            hits.increment();
+            return copy(entry.userInfo);
+        }
+        if (cacheManager != null) {
+            String json = cacheManager.getValue(cacheKeyPrefix + openid);
+            if (!StringUtil.isEmpty(json)) {
+                WeChatUserInfo weChatUserInfo = JSON.parseObject(json, WeChatUserInfo.class);
+                putLocal(weChatUserInfo, cacheManager.getSecondsToLive(cacheKeyPrefix + openid));
+                hits.increment();
+                return copy(weChatUserInfo);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(WeChatUserInfo weChatUserInfo) {
+        if (!isEnabled() || weChatUserInfo == null || StringUtil.isEmpty(weChatUserInfo.getOpenid())) {
+            return;
+        }
+        putLocal(copy(weChatUserInfo), secondsToLive);
+        if (cacheManager != null) {
+            cacheManager.setValue(cacheKeyPrefix + weChatUserInfo.getOpenid(),
+                    JSON.toJSONString(weChatUserInfo), secondsToLive);
+        }
+    }
+
+    public void evict(String openid) {
+        if (!isEnabled() || StringUtil.isEmpty(openid)) {
+            return;
+        }
+        synchronized (entries) {
+            entries.remove(openid);
+        }
+        if (cacheManager != null) {
+            cacheManager.deleteValue(cacheKeyPrefix + openid);
+        }
+    }
+
+    private void putLocal(WeChatUserInfo weChatUserInfo, long secondsToLive) {
+        if (secondsToLive <= 0) {
+            return;
+        }
+        long expiresAt = System.currentTimeMillis() + Math.min(secondsToLive, this.secondsToLive) * 1000;
+        CachedUserInfo entry = new CachedUserInfo(weChatUserInfo, expiresAt);
+        synchronized (entries) {
+            entries.put(weChatUserInfo.getOpenid(), entry);
+        }
+    }
+
+    private static WeChatUserInfo copy(WeChatUserInfo source) {
+        WeChatUserInfo weChatUserInfo = new WeChatUserInfo();
+        weChatUserInfo.setOpenid(source.getOpenid());
+        weChatUserInfo.setNickname(source.getNickname());
+        weChatUserInfo.setSex(source.getSex());
+        weChatUserInfo.setProvince(source.getProvince());
+        weChatUserInfo.setCity(source.getCity());
+        weChatUserInfo.setCountry(source.getCountry());
+        weChatUserInfo.setHeadImgUrl(source.getHeadImgUrl());
+        weChatUserInfo.setPrivilege(source.getPrivilege());
+        weChatUserInfo.setUnionid(source.getUnionid());
+        weChatUserInfo.setSubscribeTime(source.getSubscribeTime() == null ?
+                null : new Date(source.getSubscribeTime().getTime()));
+        return weChatUserInfo;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static final class CachedUserInfo {
+        private final WeChatUserInfo userInfo;
+        private final long expiresAt;
+
+        private CachedUserInfo(WeChatUserInfo userInfo, long expiresAt) {
+            this.userInfo = userInfo;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package common.wechat;
+
+import common.tools.StringUtil;
+import common.wechat.util.ConfigBuilder;
+
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * @api WeChatAsyncHelper 2、微信基础接口异步服务
+ * @apiGroup Static Util
+ * @apiName WeChatAsyncHelper
+ * @apiVersion 1.0.0
+ * @apiParam {Number} asyncPoolSize 异步调用的线程数[默认16]
+ * @apiParam {Number} asyncQueueSize 异步调用的排队上限[默认1000，队列已满时返回的CompletableFuture以RejectedExecutionException结束]
+ * @apiDescription 与WeChatHelper对应的异步接口，返回CompletableFuture。<br/>
+ * 微信接口调用在有界线程池中执行，不占用请求线程；获取用户信息时与WeChatHelper共用UserInfoCache。<br/>
+ */
+public class WeChatAsyncHelper {
+    private static ThreadPoolExecutor executor;
+
+    private WeChatAsyncHelper() {
+    }
+
+    static {
+        Properties prop = ConfigBuilder.getInstance().init(WeChatPropertiesFile.filename);
+        int poolSize = StringUtil.isEmpty(prop.getProperty("asyncPoolSize")) ?
+                16 : Integer.parseInt(prop.getProperty("asyncPoolSize"));
+        int queueSize = StringUtil.isEmpty(prop.getProperty("asyncQueueSize")) ?
+                1000 : Integer.parseInt(prop.getProperty("asyncQueueSize"));
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "wechat-async-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static CompletableFuture<OAuthUserInfo> getOauthInfoAsync(String code) {
+        return submit(() -> WeChatHelper.getOauthInfo(code));
+    }
+
+    /**
+     * 同WeChatHelper.getUserInfo,优先读取UserInfoCache,未命中时请求微信服务器并写入缓存
+     */
+    public static CompletableFuture<WeChatUserInfo> getUserInfoAsync(String openid) {
+        return submit(() -> WeChatHelper.getUserInfo(openid));
+    }
+
+    public static CompletableFuture<WeChatUserInfo> getUserInfoByOAuthAsync(OAuthUserInfo oAuthUserInfo) {
+        return submit(() -> WeChatHelper.getUserInfoByOAuth(oAuthUserInfo));
+    }
+
+    /**
+     * 刷新OAuth认证token后获取用户信息
+     */
+    public static CompletableFuture<WeChatUserInfo> refreshAndGetUserInfoByOAuthAsync(OAuthUserInfo oAuthUserInfo) {
+        return refreshAccessTokenAsync(oAuthUserInfo).thenCompose(WeChatAsyncHelper::getUserInfoByOAuthAsync);
+    }
+
+    public static CompletableFuture<OAuthUserInfo> refreshAccessTokenAsync(OAuthUserInfo oAuthUserInfo) {
+        return submit(() -> WeChatHelper.refreshAccessToken(oAuthUserInfo));
+    }
+
+    /**
+     * access_token快照有效时直接返回已完成的CompletableFuture,否则在线程池中等待刷新
+     */
+    public static CompletableFuture<String> getAccessTokenAsync() {
+        String accessToken = WeChatHelper.peekAccessToken();
+        if (accessToken != null) {
+            return CompletableFuture.completedFuture(accessToken);
+        }
+        return submit(WeChatHelper::getAccessToken);
+    }
+
+    /**
+     * 线程池已满时返回以RejectedExecutionException结束的CompletableFuture
+     */
+    static <T> CompletableFuture<T> submit(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+}
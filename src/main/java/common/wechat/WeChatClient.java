@@ -0,0 +1,827 @@
+package common.wechat;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import common.tools.AppException;
+import common.tools.StringUtil;
+import common.wechat.cache.CacheManager;
+import common.wechat.cache.TokenLease;
+import common.wechat.http.HttpClientManager;
+import common.wechat.util.SHA1;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 单个公众号的微信接口客户端
+ * 每个公众号持有独立的凭证快照、缓存key前缀、连接配额及凭证刷新线程,
+ * 连接池、异步线程池及用户信息缓存(openid在各公众号间不重复)由所有公众号共享.
+ * 实例由WeChatClientRegistry按appid创建,WeChatHelper为默认公众号的静态入口.
+ *
+ * @author LongerHsiao
+ * @date 2018-04-25
+ */
+public final class WeChatClient {
+    private static Logger logger = LoggerFactory.getLogger(WeChatClient.class);
+
+    private static final long LEASE_POLL_MILLIS = 50L;
+    // 批量获取用户信息时每批的openid数,为微信接口上限
+    private static final int BATCH_GET_USER_INFO_SIZE = 100;
+
+    private final String appId;
+    private final String secret;
+    private String cacheKeyForAccessToken;
+    private String cacheKeyForJsApiTicket;
+    // 失效秒数偏移量默认为900秒
+    private int expiredSecondOffset = 900;
+    // 提前刷新秒数默认为60秒
+    private int refreshAheadSecond = 60;
+    // 集群刷新租约时长默认为10秒
+    private long tokenLeaseMillis = 10 * 1000L;
+    // 未获得租约时等待其他节点写回的时长默认为3秒
+    private long tokenLeaseWaitMillis = 3 * 1000L;
+    // 批量获取用户信息时的并发批次数默认为4
+    private int batchConcurrency = 4;
+    // 同时占用的连接数上限,为0时不限制
+    private Semaphore httpPermits;
+    private long httpPermitWaitMillis = 1000L;
+
+    private final TokenManager<AccessToken> accessTokenManager;
+    private final TokenManager<JsApiTicket> jsApiTicketManager;
+    private final CacheManager cacheManager;
+    private TokenLease accessTokenLease;
+    private TokenLease jsApiTicketLease;
+    private final JsSignatureCache jsSignatureCache;
+    private final QuotaGovernor quotaGovernor;
+    private final UpstreamGuard upstreamGuard;
+    private final TemplateMessageSender templateMessageSender;
+    private final CustomerMessageSender customerMessageSender;
+
+    /**
+     * @param prop         本公众号的配置,未配置的项取全局配置
+     * @param cacheKeyRoot 缓存key前缀,以"."结尾;未启用缓存时为null
+     */
+    WeChatClient(String appId, String secret, Properties prop, String cacheKeyRoot, JsSignatureCache jsSignatureCache) {
+        if (StringUtil.isEmpty(appId)) {
+            throw new IllegalArgumentException("<<======weChatAppId could not be null");
+        }
+        if (StringUtil.isEmpty(secret)) {
+            throw new IllegalArgumentException("<<======weChatSecret could not be null");
+        }
+        this.appId = appId;
+        this.secret = secret;
+        this.jsSignatureCache = jsSignatureCache;
+        if (!StringUtil.isEmpty(prop.getProperty("expiredSecondOffset"))) {
+            expiredSecondOffset = Integer.parseInt(prop.getProperty("expiredSecondOffset"));
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("batchConcurrency"))) {
+            batchConcurrency = Integer.parseInt(prop.getProperty("batchConcurrency"));
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("refreshAheadSecond"))) {
+            refreshAheadSecond = Integer.parseInt(prop.getProperty("refreshAheadSecond"));
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("httpMaxPerAccount"))) {
+            int permits = Integer.parseInt(prop.getProperty("httpMaxPerAccount"));
+            httpPermits = permits > 0 ? new Semaphore(permits) : null;
+        }
+        if (!StringUtil.isEmpty(prop.getProperty("httpAccountWaitMillis"))) {
+            httpPermitWaitMillis = Long.parseLong(prop.getProperty("httpAccountWaitMillis"));
+        }
+
+        cacheManager = CacheManager.getInstance();
+        quotaGovernor = new QuotaGovernor(appId, prop, cacheKeyRoot);
+        upstreamGuard = new UpstreamGuard(appId, prop);
+        if (cacheManager.cacheOn) {
+            cacheKeyForAccessToken = cacheKeyRoot + "ACCESS_TOKEN";
+            cacheKeyForJsApiTicket = cacheKeyRoot + "JS_API_TICKET";
+            if (!StringUtil.isEmpty(prop.getProperty("tokenLeaseMillis"))) {
+                tokenLeaseMillis = Long.parseLong(prop.getProperty("tokenLeaseMillis"));
+            }
+            if (!StringUtil.isEmpty(prop.getProperty("tokenLeaseWaitMillis"))) {
+                tokenLeaseWaitMillis = Long.parseLong(prop.getProperty("tokenLeaseWaitMillis"));
+            }
+            accessTokenLease = new TokenLease(cacheManager, cacheKeyForAccessToken, tokenLeaseMillis);
+            jsApiTicketLease = new TokenLease(cacheManager, cacheKeyForJsApiTicket, tokenLeaseMillis);
+        }
+        // 每个公众号单独的刷新线程,某个公众号刷新缓慢时不影响其他公众号
+        ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wechat-token-refresher-" + appId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        accessTokenManager = new TokenManager<>(appId + ".access_token", this::loadAccessToken, refreshAheadSecond,
+                refresher);
+        jsApiTicketManager = new TokenManager<>(appId + ".js_api_ticket", this::loadJsApiTicket, refreshAheadSecond,
+                refresher);
+        templateMessageSender = new TemplateMessageSender(this, prop);
+        customerMessageSender = new CustomerMessageSender(this, prop);
+        if (cacheManager.cacheOn) {
+            // 其他节点刷新凭证后丢弃本地快照
+            cacheManager.addInvalidationListener(key -> {
+                if (key.equals(cacheKeyForAccessToken)) {
+                    accessTokenManager.invalidate();
+                } else if (key.equals(cacheKeyForJsApiTicket)) {
+                    jsApiTicketManager.invalidate();
+                }
+            });
+        }
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    /**
+     * 本公众号的接口调用配额
+     */
+    public QuotaGovernor getQuotaGovernor() {
+        return quotaGovernor;
+    }
+
+    /**
+     * 本公众号的接口重试及熔断
+     */
+    public UpstreamGuard getUpstreamGuard() {
+        return upstreamGuard;
+    }
+
+    public OAuthUserInfo getOauthInfo(String code) {
+        if (StringUtil.isEmpty(code)) {
+            throw new AppException("code could not be null");
+        }
+        OAuthUserInfo oAuthUserInfo = null;
+        try {
+            String url = WeChatUrlFormat.GET_OAUTH_TOKEN.format(appId, secret, code);
+            JSONObject jsonObject = call(WeChatUrlFormat.GET_OAUTH_TOKEN, url, null, QuotaGovernor.Priority.INTERACTIVE);
+            if (StringUtil.isEmpty(jsonObject.getString("openid"))) {
+                logger.error("<<======WeChatClient.getOpenid:code=" + code + "======" + jsonObject.toJSONString());
+                return null;
+            }
+            oAuthUserInfo = new OAuthUserInfo();
+            oAuthUserInfo.setOpenid(jsonObject.getString("openid"));
+            oAuthUserInfo.setAccessToken(jsonObject.getString("access_token"));
+            oAuthUserInfo.setRefreshToken(jsonObject.getString("refresh_token"));
+            oAuthUserInfo.setExpiredSecond(jsonObject.getInteger("expires_in") - expiredSecondOffset);
+        } catch (Exception e) {
+            logger.error("<<======WeChatClient.getOpenid:code=" + code, e);
+        }
+        return oAuthUserInfo;
+    }
+
+    /**
+     * 获取用户信息
+     * 优先读取UserInfoCache,未命中时请求微信服务器并写入缓存
+     */
+    public WeChatUserInfo getUserInfo(String openid) {
+        UserInfoCache userInfoCache = UserInfoCache.getInstance();
+        WeChatUserInfo weChatUserInfo = userInfoCache.get(openid);
+        if (weChatUserInfo != null) {
+            return weChatUserInfo;
+        }
+        weChatUserInfo = getUserInfo(getAccessToken(), openid);
+        userInfoCache.put(weChatUserInfo);
+        return weChatUserInfo;
+    }
+
+    WeChatUserInfo getUserInfo(String accessToken, String openid) {
+        WeChatUserInfo weChatUserInfo = null;
+        try {
+            JSONObject jsonObject = callWithAccessToken(WeChatUrlFormat.GET_USER_INFO, accessToken, null,
+                    QuotaGovernor.Priority.INTERACTIVE, openid);
+            if (jsonObject.getInteger("subscribe") == 0) {
+                logger.info("<<======WeChatClient.getUserInfo:the user is not subscribed, openid =" + openid);
+                return null;
+            }
+            weChatUserInfo = toUserInfo(openid, jsonObject);
+        } catch (Exception e) {
+            logger.error("<<======WeChatClient.getUserInfo:openid=" + openid, e);
+        }
+        return weChatUserInfo;
+    }
+
+    /**
+     * 批量获取用户信息
+     * 每100个openid合并为一次user/info/batchget请求,各批次在batchConcurrency限定的并发数内并行执行;
+     * 未关注公众号的用户不包含在返回结果中;任一批次请求失败时抛出AppException,不返回部分结果
+     *
+     * @return openid为key的用户信息,顺序与openids一致
+     */
+    public Map<String, WeChatUserInfo> getUserInfoBatch(Collection<String> openids) {
+        Map<String, WeChatUserInfo> result = new LinkedHashMap<>();
+        if (openids == null || openids.isEmpty()) {
+            return result;
+        }
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(openids));
+        String accessToken = getAccessToken();
+        Semaphore budget = new Semaphore(batchConcurrency);
+        List<CompletableFuture<Map<String, WeChatUserInfo>>> futures = new ArrayList<>();
+        for (int from = 0; from < distinct.size(); from += BATCH_GET_USER_INFO_SIZE) {
+            List<String> chunk = distinct.subList(from, Math.min(from + BATCH_GET_USER_INFO_SIZE, distinct.size()));
+            budget.acquireUninterruptibly();
+            CompletableFuture<Map<String, WeChatUserInfo>> future =
+                    WeChatAsyncHelper.submit(() -> queryUserInfoBatch(accessToken, chunk));
+            future.whenComplete((infos, e) -> budget.release());
+            futures.add(future.handle((infos, e) -> {
+                if (e == null) {
+                    return infos;
+                }
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                // 异步线程池已满时在当前线程执行该批次
+                if (cause instanceof RejectedExecutionException) {
+                    return queryUserInfoBatch(accessToken, chunk);
+                }
+                throw cause instanceof AppException ? (AppException) cause :
+                        new AppException("query user info batch failed, " + cause.getMessage());
+            }));
+        }
+        Map<String, WeChatUserInfo> merged = new HashMap<>();
+        for (CompletableFuture<Map<String, WeChatUserInfo>> future : futures) {
+            try {
+                merged.putAll(future.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof AppException ? (AppException) e.getCause() :
+                        new AppException("query user info batch failed, " + e.getMessage());
+            }
+        }
+        for (String openid : distinct) {
+            WeChatUserInfo weChatUserInfo = merged.get(openid);
+            if (weChatUserInfo != null) {
+                result.put(openid, weChatUserInfo);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 请求失败或返回错误码时抛出AppException
+     */
+    private Map<String, WeChatUserInfo> queryUserInfoBatch(String accessToken, List<String> openids) {
+        Map<String, WeChatUserInfo> infos = new HashMap<>();
+        JSONObject jsonObject;
+        try {
+            JSONArray userList = new JSONArray(openids.size());
+            for (String openid : openids) {
+                JSONObject user = new JSONObject(2);
+                user.put("openid", openid);
+                user.put("lang", "zh_CN");
+                userList.add(user);
+            }
+            JSONObject body = new JSONObject(1);
+            body.put("user_list", userList);
+            jsonObject = callWithAccessToken(WeChatUrlFormat.BATCH_GET_USER_INFO, accessToken,
+                    body.toJSONString(), QuotaGovernor.Priority.BULK);
+        } catch (IOException e) {
+            logger.error("<<======WeChatClient.queryUserInfoBatch:size=" + openids.size(), e);
+            throw new AppException("query user info batch failed, size=" + openids.size() + ", " + e.getMessage());
+        }
+        JSONArray userInfoList = jsonObject.getJSONArray("user_info_list");
+        if (userInfoList == null) {
+            logger.error("<<======WeChatClient.queryUserInfoBatch:" + jsonObject.toJSONString());
+            throw new AppException("query user info batch failed, size=" + openids.size() + ", "
+                    + jsonObject.toJSONString());
+        }
+        for (int i = 0; i < userInfoList.size(); i++) {
+            JSONObject userInfo = userInfoList.getJSONObject(i);
+            if (userInfo.getIntValue("subscribe") == 0) {
+                continue;
+            }
+            String openid = userInfo.getString("openid");
+            infos.put(openid, toUserInfo(openid, userInfo));
+        }
+        return infos;
+    }
+
+    private static WeChatUserInfo toUserInfo(String openid, JSONObject jsonObject) {
+        WeChatUserInfo weChatUserInfo = new WeChatUserInfo();
+        weChatUserInfo.setOpenid(openid);
+        weChatUserInfo.setNickname(jsonObject.getString("nickname"));
+        int sex = StringUtil.isEmpty(jsonObject.getString("sex")) ?
+                0 : Integer.parseInt(jsonObject.getString("sex"));
+        weChatUserInfo.setSex(sex);
+        weChatUserInfo.setProvince(jsonObject.getString("province"));
+        weChatUserInfo.setCity(jsonObject.getString("city"));
+        weChatUserInfo.setCountry(jsonObject.getString("country"));
+        weChatUserInfo.setHeadImgUrl(jsonObject.getString("headimgurl"));
+        // cgi-bin/user/info不返回privilege
+        if (jsonObject.getJSONArray("privilege") != null) {
+            weChatUserInfo.setPrivilegeAsJson(jsonObject.getJSONArray("privilege"));
+        }
+        weChatUserInfo.setUnionid(jsonObject.containsKey("unionid") ? jsonObject.getString("unionid") : null);
+        weChatUserInfo.setSubscribeTime(jsonObject.getDate("subscribe_time"));
+        return weChatUserInfo;
+    }
+
+    /**
+     * 关注者openid流
+     * 按需逐页请求,内存中仅保留当前页;请求失败时抛出AppException
+     */
+    public Stream<String> getFollowers() {
+        return toStream(new FollowerPageIterator(this)).flatMap(List::stream);
+    }
+
+    /**
+     * 关注者信息流
+     * 获取当前页用户信息的同时预取下一页openid,内存占用与关注者总数无关;请求失败时抛出AppException
+     */
+    public Stream<WeChatUserInfo> getFollowerInfos() {
+        return toStream(new FollowerInfoIterator(this));
+    }
+
+    JSONObject queryFollowers(String nextOpenid) {
+        JSONObject jsonObject;
+        try {
+            jsonObject = callWithAccessToken(WeChatUrlFormat.GET_FOLLOWERS, getAccessToken(), null,
+                    QuotaGovernor.Priority.BULK, nextOpenid);
+        } catch (IOException e) {
+            throw new AppException("query followers failed, next_openid=" + nextOpenid + ", " + e.getMessage());
+        }
+        if (jsonObject == null || jsonObject.getIntValue("errcode") != 0) {
+            throw new AppException("query followers failed, next_openid=" + nextOpenid + ", "
+                    + (jsonObject == null ? null : jsonObject.toJSONString()));
+        }
+        return jsonObject;
+    }
+
+    private static <T> Stream<T> toStream(Iterator<T> iterator) {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    public WeChatUserInfo getUserInfoByOAuth(OAuthUserInfo oAuthUserInfo) {
+        if (oAuthUserInfo == null || StringUtil.isEmpty(oAuthUserInfo.getOpenid())) {
+            throw new AppException("openid could not be null");
+        }
+        if (oAuthUserInfo.isExpired()) {
+            throw new AppException("the access_token is expired");
+        }
+        WeChatUserInfo weChatUserInfo = null;
+        String openid = oAuthUserInfo.getOpenid();
+        try {
+            String url = WeChatUrlFormat.GET_USER_INFO_BY_OAUTH.format(oAuthUserInfo.getAccessToken(), openid);
+            JSONObject jsonObject = call(WeChatUrlFormat.GET_USER_INFO_BY_OAUTH, url, null,
+                    QuotaGovernor.Priority.INTERACTIVE);
+            weChatUserInfo = new WeChatUserInfo();
+            weChatUserInfo.setOpenid(openid);
+            weChatUserInfo.setNickname(jsonObject.getString("nickname"));
+            int sex = StringUtil.isEmpty(jsonObject.getString("sex")) ?
+                    0 : Integer.parseInt(jsonObject.getString("sex"));
+            weChatUserInfo.setSex(sex);
+            weChatUserInfo.setProvince(jsonObject.getString("province"));
+            weChatUserInfo.setCity(jsonObject.getString("city"));
+            weChatUserInfo.setCountry(jsonObject.getString("country"));
+            weChatUserInfo.setHeadImgUrl(jsonObject.getString("headimgurl"));
+            // cgi-bin/user/info不返回privilege
+        if (jsonObject.getJSONArray("privilege") != null) {
+            weChatUserInfo.setPrivilegeAsJson(jsonObject.getJSONArray("privilege"));
+        }
+            weChatUserInfo.setUnionid(jsonObject.containsKey("unionid") ? jsonObject.getString("unionid") : null);
+        } catch (Exception e) {
+            logger.error("<<======WeChatClient.getUserInfoFromOAuth:openid=" + openid, e);
+        }
+        return weChatUserInfo;
+    }
+
+    /**
+     * 刷新OAuth认证token
+     * 出现以下情形时直接返回原oAuthUserInfo对象:
+     * 1、refresh_token为空;
+     * 2、刷新过程中出现异常;
+     * 3、认证未过期.
+     */
+    public OAuthUserInfo refreshAccessToken(OAuthUserInfo oAuthUserInfo) {
+        if (oAuthUserInfo == null
+                || StringUtil.isEmpty(oAuthUserInfo.getRefreshToken())
+                || !oAuthUserInfo.isExpired()) {
+            return oAuthUserInfo;
+        }
+        try {
+            String url = WeChatUrlFormat.REFRESH_OAUTH_TOKEN.format(appId, oAuthUserInfo.getRefreshToken());
+            JSONObject jsonObject = call(WeChatUrlFormat.REFRESH_OAUTH_TOKEN, url, null, QuotaGovernor.Priority.INTERACTIVE);
+            if (StringUtil.isEmpty(jsonObject.getString("access_token"))) {
+                logger.error("<<======WeChatClient.refreshSpecialAccessToken:" + jsonObject.toJSONString());
+                return oAuthUserInfo;
+            }
+            oAuthUserInfo.setAccessToken(jsonObject.getString("access_token"));
+            oAuthUserInfo.setRefreshToken(jsonObject.getString("refresh_token"));
+            oAuthUserInfo.setExpiredSecond(jsonObject.getInteger("expires_in") - expiredSecondOffset);
+        } catch (Exception e) {
+            logger.error("<<======WeChatClient.refreshAccessToken:openid=" + oAuthUserInfo.getOpenid(), e);
+        }
+        return oAuthUserInfo;
+    }
+
+    /**
+     * 获取access_token
+     * 读取内存中的快照,快照由后台线程在失效前刷新;
+     * 如果启用了外部缓存,则刷新时优先从缓存中获取
+     */
+    public String getAccessToken() {
+        return accessTokenManager.get();
+    }
+
+    /**
+     * 获取仍有效的access_token快照,快照失效时返回null而不触发刷新
+     */
+    String peekAccessToken() {
+        return accessTokenManager.peek();
+    }
+
+    /**
+     * 获取js_api_ticket
+     * 读取内存中的快照,快照由后台线程在失效前刷新;
+     * 如果启用了外部缓存,则刷新时优先从缓存中获取
+     */
+    public String getJsApiTicket() {
+        return jsApiTicketManager.get();
+    }
+
+    /**
+     * 1、对 js_api_ticket、 timestamp 和 nonce 按字典排序
+     * 对所有待签名参数按照字段名的 ASCII码从小到大排序（字典序）后,
+     * 使用 URL 键值对的格式（即key1=value1&key2=value2…）拼接成字符串string1.
+     * 这里需要注意的是所有参数名均为小写字符.
+     * 2、接下来对 string1 作 sha1 加密,字段名和字段值都采用原始值,不进行URL 转义.
+     * 即 signature=sha1(string1).
+     * 如果没有按照生成的key1=value&key2=value拼接的话会报错
+     * 3、url中#及其后面的部分不参与签名;同一签名窗口内的签名由JsSignatureCache缓存;
+     * 4、url为空或未能取得js_api_ticket时抛出AppException.
+     */
+    public Signature getSignature(String url) {
+        if (StringUtil.isEmpty(url)) {
+            throw new AppException("url could not be null");
+        }
+        return getSignature(requireJsApiTicket(), url);
+    }
+
+    /**
+     * 批量签名,共用同一js_api_ticket及签名窗口
+     *
+     * @return url为key的签名,顺序与urls一致
+     */
+    public Map<String, Signature> getSignatures(Collection<String> urls) {
+        Map<String, Signature> result = new LinkedHashMap<>();
+        if (urls == null || urls.isEmpty()) {
+            return result;
+        }
+        for (String url : urls) {
+            if (StringUtil.isEmpty(url)) {
+                throw new AppException("url could not be null");
+            }
+        }
+        String ticket = requireJsApiTicket();
+        for (String url : urls) {
+            result.put(url, getSignature(ticket, url));
+        }
+        return result;
+    }
+
+    private String requireJsApiTicket() {
+        String ticket = getJsApiTicket();
+        if (StringUtil.isEmpty(ticket)) {
+            throw new AppException("the js_api_ticket is unavailable");
+        }
+        return ticket;
+    }
+
+    private Signature getSignature(String ticket, String url) {
+        int fragment = url.indexOf('#');
+        if (fragment >= 0) {
+            url = url.substring(0, fragment);
+        }
+        Signature cached = jsSignatureCache.get(ticket, url);
+        if (cached == null) {
+            JsSignatureCache.Window window = jsSignatureCache.window(ticket);
+            cached = createSignature(ticket, window.getNonceStr(), window.getTimestamp(), url);
+            jsSignatureCache.put(window, url, cached);
+        }
+        // 缓存中的实例不对外暴露
+        Signature signature = new Signature();
+        signature.setAppId(cached.getAppId());
+        signature.setNonceStr(cached.getNonceStr());
+        signature.setTimestamp(cached.getTimestamp());
+        signature.setSignature(cached.getSignature());
+        return signature;
+    }
+
+    /**
+     * 参数名的字典序固定为jsapi_ticket、noncestr、timestamp、url,按该顺序直接拼接
+     */
+    private Signature createSignature(String ticket, String nonceStr, String timestamp, String url) {
+        StringBuilder param = new StringBuilder(64 + ticket.length() + nonceStr.length() + url.length());
+        param.append("jsapi_ticket=").append(ticket)
+                .append("&noncestr=").append(nonceStr)
+                .append("&timestamp=").append(timestamp)
+                .append("&url=").append(url);
+        Signature signature = new Signature();
+        signature.setAppId(appId);
+        signature.setNonceStr(nonceStr);
+        signature.setTimestamp(timestamp);
+        signature.setSignature(SHA1.sign(param.toString().getBytes(StandardCharsets.UTF_8)));
+        return signature;
+    }
+
+    /**
+     * 发送客服消息
+     * 已超出48小时互动窗口的用户在本地失败,不请求微信服务器
+     *
+     * @param message 客服消息json,如{"touser":"OPENID","msgtype":"text","text":{"content":"Hello"}}
+     * @return 是否发送成功
+     */
+    public boolean sendCustomerMessage(JSONObject message) {
+        MessageSendResult result = customerMessageSender.send(message);
+        if (!result.isSuccess()) {
+            logger.error("<<======WeChatClient.sendCustomerMessage:touser=" + result.getTouser()
+                    + ", errcode=" + result.getErrcode() + ", errmsg=" + result.getErrmsg());
+        }
+        return result.isSuccess();
+    }
+
+    /**
+     * 群发客服消息
+     *
+     * @see CustomerMessageSender#send(Stream, Consumer)
+     */
+    public MessageSendStats sendCustomerMessages(Stream<JSONObject> messages, Consumer<MessageSendResult> callback) {
+        return customerMessageSender.send(messages, callback);
+    }
+
+    /**
+     * 发送模板消息
+     *
+     * @see TemplateMessageSender#send(Stream, Consumer)
+     */
+    public MessageSendStats sendTemplateMessages(Stream<JSONObject> messages, Consumer<MessageSendResult> callback) {
+        return templateMessageSender.send(messages, callback);
+    }
+
+    /**
+     * 携带access_token调用POST接口
+     *
+     * @see #callWithAccessToken(WeChatUrlFormat, String, String, QuotaGovernor.Priority, String...)
+     */
+    JSONObject postWithAccessToken(WeChatUrlFormat format, String json, QuotaGovernor.Priority priority)
+            throws IOException {
+        return callWithAccessToken(format, getAccessToken(), json, priority);
+    }
+
+    /**
+     * 携带access_token调用接口
+     * access_token被判定无效时重新获取并重试一次
+     *
+     * @param json   POST请求体,为null时以GET请求
+     * @param params url中access_token之后的参数
+     * @return 微信服务器返回的json
+     */
+    private JSONObject callWithAccessToken(WeChatUrlFormat format, String accessToken, String json,
+                                           QuotaGovernor.Priority priority, String... params) throws IOException {
+        String[] args = new String[params.length + 1];
+        System.arraycopy(params, 0, args, 1, params.length);
+        args[0] = accessToken;
+        JSONObject jsonObject = call(format, format.format(args), json, priority);
+        if (isInvalidAccessToken(jsonObject.getIntValue("errcode"))) {
+            logger.warn("<<======WeChatClient.callWithAccessToken:" + format.name() + ", " + jsonObject.toJSONString());
+            args[0] = renewAccessToken(accessToken);
+            jsonObject = call(format, format.format(args), json, priority);
+        }
+        return jsonObject;
+    }
+
+    /**
+     * 40001:access_token无效;40014:不合法的access_token;42001:access_token超时
+     */
+    private static boolean isInvalidAccessToken(int errcode) {
+        return errcode == 40001 || errcode == 40014 || errcode == 42001;
+    }
+
+    /**
+     * 重新获取被判定无效的access_token
+     * 并发的调用方只触发一次刷新;缓存中仍为该值时一并删除,使其他节点同样重新获取
+     */
+    private String renewAccessToken(String rejected) {
+        if (cacheManager.cacheOn && rejected != null && rejected.equals(cacheManager.getValue(cacheKeyForAccessToken))) {
+            cacheManager.deleteValue(cacheKeyForAccessToken);
+        }
+        return accessTokenManager.renew(rejected);
+    }
+
+    String getOAuthUrl(String redirectURI, String state) {
+        state = StringUtil.isEmpty(state) ? "" : state;
+        return WeChatUrlFormat.OAUTH_URL.format(appId, redirectURI, state);
+    }
+
+    /**
+     * 加载access_token
+     * 若开启了外部缓存,则经由集群租约加载
+     */
+    private AccessToken loadAccessToken(AccessToken previous) {
+        if (cacheManager.cacheOn) {
+            return loadWithLease(cacheKeyForAccessToken, accessTokenLease, previous,
+                    this::queryAccessToken, AccessToken::new);
+        }
+        return queryAccessToken();
+    }
+
+    private AccessToken queryAccessToken() {
+        try {
+            String url = WeChatUrlFormat.GET_ACCESS_TOKEN.format(appId, secret);
+            JSONObject jsonObject = call(WeChatUrlFormat.GET_ACCESS_TOKEN, url, null, QuotaGovernor.Priority.INTERACTIVE);
+            if (StringUtil.isEmpty(jsonObject.getString("access_token"))) {
+                logger.error("<<======WeChatClient.queryAccessToken:" + jsonObject.toJSONString());
+                return null;
+            }
+            return AccessToken.expiresIn(jsonObject.getString("access_token"),
+                    jsonObject.getInteger("expires_in") - expiredSecondOffset);
+        } catch (AppException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("<<======WeChatClient.queryAccessToken:" + e.getMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * 加载js_api_ticket
+     * 规则同access_token
+     */
+    private JsApiTicket loadJsApiTicket(JsApiTicket previous) {
+        if (cacheManager.cacheOn) {
+            return loadWithLease(cacheKeyForJsApiTicket, jsApiTicketLease, previous,
+                    this::queryJsApiTicket, JsApiTicket::new);
+        }
+        return queryJsApiTicket();
+    }
+
+    private JsApiTicket queryJsApiTicket() {
+        try {
+            JSONObject jsonObject = callWithAccessToken(WeChatUrlFormat.GET_JS_API_TICKET, getAccessToken(), null,
+                    QuotaGovernor.Priority.INTERACTIVE);
+            if (StringUtil.isEmpty(jsonObject.getString("ticket"))) {
+                logger.error("<<======WeChatClient.queryJsApiTicket:" + jsonObject.toJSONString());
+                return null;
+            }
+            return JsApiTicket.expiresIn(jsonObject.getString("ticket"),
+                    jsonObject.getInteger("expires_in") - expiredSecondOffset);
+        } catch (AppException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("<<======WeChatClient.queryJsApiTicket:" + e.getMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * 经由集群租约加载凭证
+     * 1、缓存中的值仍在有效期内(且不在提前刷新窗口内)时直接使用;
+     * 2、获得租约的节点向微信服务器请求,并以fence校验写回缓存;
+     * 3、未获得租约的节点短暂等待新值写回,超时则沿用旧值,待租约到期后再尝试.
+     */
+    private <T extends ExpirableToken> T loadWithLease(String key, TokenLease lease, T previous,
+                                                            Supplier<T> query, BiFunction<String, Long, T> factory) {
+        T cached = getFreshFromCache(key, factory);
+        if (cached != null) {
+            return cached;
+        }
+        TokenLease.Grant grant = lease.tryAcquire();
+        if (grant != null) {
+            try {
+                // 获得租约后再检查一次,其他节点可能刚刚完成刷新
+                cached = getFreshFromCache(key, factory);
+                if (cached != null) {
+                    return cached;
+                }
+                T queried = query.get();
+                if (queried != null && !lease.write(grant, key, queried.getValue(), secondsUntil(queried))) {
+                    logger.warn("<<======WeChatClient.loadWithLease:lease lost, key=" + key + ", fence=" + grant.getFence());
+                    cached = getFreshFromCache(key, factory);
+                    return cached != null ? cached : queried;
+                }
+                return queried;
+            } finally {
+                lease.release(grant);
+            }
+        }
+        long deadline = System.currentTimeMillis() + tokenLeaseWaitMillis;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(LEASE_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            cached = getFreshFromCache(key, factory);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        if (previous == null) {
+            return null;
+        }
+        // 沿用旧值,使下一次刷新发生在当前租约到期之后
+        return factory.apply(previous.getValue(),
+                System.currentTimeMillis() + refreshAheadSecond * 1000L + lease.getLeaseMillis());
+    }
+
+    /**
+     * 读取缓存中的凭证
+     * 值为空、未设置过期时间或已进入提前刷新窗口时返回null
+     */
+    private <T extends ExpirableToken> T getFreshFromCache(String key, BiFunction<String, Long, T> factory) {
+        String cached = cacheManager.getValue(key);
+        if (StringUtil.isEmpty(cached)) {
+            return null;
+        }
+        long secondsToLive = cacheManager.getSecondsToLive(key);
+        if (secondsToLive <= refreshAheadSecond) {
+            return null;
+        }
+        return factory.apply(cached, System.currentTimeMillis() + secondsToLive * 1000);
+    }
+
+    private static int secondsUntil(ExpirableToken token) {
+        return (int) Math.max(1, (token.getExpiresAt() - System.currentTimeMillis()) / 1000);
+    }
+
+    /**
+     * 经由UpstreamGuard调用接口,errcode为-1时退避重试,连续失败时熔断
+     * 请求本身的连接异常仅在GET请求时重试
+     *
+     * @param json POST请求体,为null时以GET请求
+     */
+    private JSONObject call(WeChatUrlFormat format, String url, String json, QuotaGovernor.Priority priority)
+            throws IOException {
+        if (json == null) {
+            return upstreamGuard.call(format, true, () -> httpGet(format, url, priority));
+        }
+        return upstreamGuard.call(format, false, () -> httpPost(format, url, json, priority));
+    }
+
+    private String httpGet(WeChatUrlFormat format, String url, QuotaGovernor.Priority priority) throws IOException {
+        quotaGovernor.acquire(format, priority);
+        acquireHttpPermit();
+        try {
+            return HttpClientManager.getInstance().get(url);
+        } finally {
+            releaseHttpPermit();
+        }
+    }
+
+    private String httpPost(WeChatUrlFormat format, String url, String json, QuotaGovernor.Priority priority)
+            throws IOException {
+        quotaGovernor.acquire(format, priority);
+        acquireHttpPermit();
+        try {
+            return HttpClientManager.getInstance().post(url, json);
+        } finally {
+            releaseHttpPermit();
+        }
+    }
+
+    /**
+     * 限制本公众号同时占用的连接数,避免单个公众号占满共享连接池
+     */
+    private void acquireHttpPermit() throws IOException {
+        if (httpPermits == null) {
+            return;
+        }
+        try {
+            if (!httpPermits.tryAcquire(httpPermitWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new QuotaExceededException(QuotaExceededException.RATE_LIMIT,
+                        "http connections of " + appId + " exhausted");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for http connection of " + appId);
+        }
+    }
+
+    private void releaseHttpPermit() {
+        if (httpPermits != null) {
+            httpPermits.release();
+        }
+    }
+}
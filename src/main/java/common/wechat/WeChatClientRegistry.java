@@ -0,0 +1,125 @@
+package common.wechat;
+
+import common.tools.AppException;
+import common.tools.StringUtil;
+import common.wechat.cache.CacheManager;
+import common.wechat.util.ConfigBuilder;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @api WeChatClientRegistry 3、多公众号客户端
+ * @apiGroup Static Util
+ * @apiName WeChatClientRegistry
+ * @apiVersion 1.0.0
+ * @apiParam {String} tenant.{appid}.weChatSecret 其他公众号的凭证密钥[配置后可通过get(appid)获取该公众号的客户端]
+ * @apiParam {String} tenant.{appid}.rootKey 其他公众号的缓存key前缀[默认为rootKey加appid]
+ * @apiParam {String} tenant.{appid}.* 其他公众号单独的配置项，如refreshAheadSecond、batchConcurrency、httpMaxPerAccount[未配置的项取全局配置]
+ * @apiParam {Number} httpMaxPerAccount 每个公众号同时占用的连接数上限[默认0，不限制]
+ * @apiParam {Number} httpAccountWaitMillis 公众号连接数已满时的等待时长[默认1000毫秒，超时则本次请求失败]
+ * @apiDescription 按appid管理WeChatClient，客户端在首次获取时按配置创建；weChatAppId对应默认公众号，即WeChatHelper所使用的客户端。<br/>
+ * 获取已创建的客户端不加锁，各公众号的凭证刷新互不阻塞。<br/>
+ */
+public final class WeChatClientRegistry {
+    private WeChatClientRegistry() {
+        init();
+    }
+
+    private static class WeChatClientRegistryHolder {
+        private static final WeChatClientRegistry INSTANCE = new WeChatClientRegistry();
+    }
+
+    public static WeChatClientRegistry getInstance() {
+        return WeChatClientRegistryHolder.INSTANCE;
+    }
+
+    private static final String TENANT_PREFIX = "tenant.";
+
+    private Properties config;
+    private String defaultAppId;
+    private final ConcurrentHashMap<String, WeChatClient> clients = new ConcurrentHashMap<>();
+
+    private void init() {
+        config = ConfigBuilder.getInstance().init(WeChatPropertiesFile.filename);
+        if (config == null) {
+            throw new NullPointerException("<<======the wechat.properties file not found");
+        }
+        defaultAppId = config.getProperty("weChatAppId");
+    }
+
+    /**
+     * 默认公众号的客户端
+     */
+    public WeChatClient getDefault() {
+        if (StringUtil.isEmpty(defaultAppId)) {
+            throw new IllegalArgumentException("<<======weChatAppId could not be null");
+        }
+        return get(defaultAppId);
+    }
+
+    /**
+     * 获取appid对应的客户端,首次获取时按配置创建
+     */
+    public WeChatClient get(String appId) {
+        WeChatClient client = clients.get(appId);
+        if (client != null) {
+            return client;
+        }
+        return clients.computeIfAbsent(appId, id -> create(id, null));
+    }
+
+    /**
+     * 注册未写入配置文件的公众号,appid已存在时返回已有的客户端
+     */
+    public WeChatClient register(String appId, String secret) {
+        if (StringUtil.isEmpty(appId)) {
+            throw new IllegalArgumentException("<<======appId could not be null");
+        }
+        return clients.computeIfAbsent(appId, id -> create(id, secret));
+    }
+
+    /**
+     * 已创建客户端的appid
+     */
+    public Collection<String> getAppIds() {
+        return Collections.unmodifiableSet(clients.keySet());
+    }
+
+    private WeChatClient create(String appId, String secret) {
+        boolean isDefault = appId.equals(defaultAppId);
+        String prefix = TENANT_PREFIX + appId + ".";
+        // 本公众号的配置项覆盖全局配置
+        Properties prop = new Properties(config);
+        for (String name : config.stringPropertyNames()) {
+            if (name.startsWith(prefix)) {
+                prop.setProperty(name.substring(prefix.length()), config.getProperty(name));
+            }
+        }
+        if (StringUtil.isEmpty(secret)) {
+            secret = isDefault ? config.getProperty("weChatSecret") : config.getProperty(prefix + "weChatSecret");
+        }
+        if (StringUtil.isEmpty(secret)) {
+            throw new AppException("weChatSecret of " + appId + " is not configured");
+        }
+        String cacheKeyRoot = null;
+        if (CacheManager.getInstance().cacheOn) {
+            String rootKey = prop.getProperty("rootKey");
+            if (StringUtil.isEmpty(rootKey)) {
+                throw new IllegalArgumentException("<<======rootKey could not be null");
+            }
+            if (!rootKey.endsWith(".")) {
+                rootKey += ".";
+            }
+            // 默认公众号沿用原有的key,其他公众号未单独配置rootKey时以appid区分
+            if (!isDefault && config.getProperty(prefix + "rootKey") == null) {
+                rootKey += appId + ".";
+            }
+            cacheKeyRoot = rootKey;
+        }
+        JsSignatureCache jsSignatureCache = isDefault ? JsSignatureCache.getInstance() : new JsSignatureCache();
+        return new WeChatClient(appId, secret, prop, cacheKeyRoot, jsSignatureCache);
+    }
+}
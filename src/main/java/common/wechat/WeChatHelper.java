@@ -1,21 +1,11 @@
 package common.wechat;
 
 import com.alibaba.fastjson.JSONObject;
-import common.tools.AppException;
-import common.tools.StringUtil;
-import common.webtools.MyHttpClient;
-import common.wechat.cache.CacheManager;
-import common.wechat.util.ConfigBuilder;
-import common.wechat.util.SHA1;
-import org.apache.commons.lang3.RandomStringUtils;
-import org.apache.http.HttpException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
-import java.util.Properties;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * @author LongerHsiao
@@ -30,141 +20,69 @@ import java.util.Properties;
  * @apiParam {String} weChatAppId 微信公众号唯一凭证<code>必须</code>
  * @apiParam {String} weChatSecret 微信公众号凭证密钥<code>必须</code>
  * @apiParam {String} rootKey key值前缀[若启用缓存，则需配置该字段，为避免多应用配置同一缓存框架而造成设值冲突]
+ * @apiParam {Number} tokenLeaseMillis 启用缓存时集群刷新租约的时长[默认10000毫秒，同一rootKey下同一时刻只有一个节点刷新凭证]
+ * @apiParam {Number} tokenLeaseWaitMillis 启用缓存时未获得租约的节点等待新凭证写回的时长[默认3000毫秒，超时则沿用旧凭证]
+ * @apiParam {Number} refreshAheadSecond access_token、js_api_ticket提前刷新的秒数[默认60秒，由后台线程在失效前刷新]
+ * @apiParam {Number} userInfoCacheSize getUserInfo缓存的用户数上限[默认10000，按最久未访问淘汰，为0时不缓存]
+ * @apiParam {Number} userInfoCacheSecond getUserInfo缓存的存活秒数[默认300秒]
+ * @apiParam {Boolean} userInfoCacheRedis 是否同时将用户信息缓存于redis[默认false，需启用缓存]
+ * @apiParam {Number} batchConcurrency 批量获取用户信息时并行请求的批次数[默认4]
+ * @apiParam {Number} jsSignatureCacheSize js-sdk签名缓存的url数上限[默认1000，按最久未访问淘汰，为0时不缓存]
+ * @apiParam {Number} jsSignatureCacheSecond js-sdk签名窗口秒数[默认300秒，窗口内共用noncestr及timestamp，js_api_ticket变化时提前结束]
  * @apiDescription 所有需要调用微信功能的应用中都需要依赖本服务。<br/>
+ * 静态方法均作用于weChatAppId对应的默认公众号，其他公众号通过WeChatClientRegistry.getInstance().get(appid)获取客户端。<br/>
  */
 public class WeChatHelper {
-    private static Logger logger = LoggerFactory.getLogger(WeChatHelper.class);
-
-    private static String weChatAppId;
-    private static String weChatSecret;
-    private static String cacheKeyForAccessToken;
-    private static String cacheKeyForJsApiTicket;
-    // 失效秒数偏移量默认为900秒
-    private static int expiredSecondOffset = 900;
-
-    private static AccessToken accessToken;
-    private static JsApiTicket jsApiTicket;
-    private static CacheManager cacheManager;
+    private static WeChatClient client;
 
     private WeChatHelper() {
     }
 
     static {
-        Properties prop = ConfigBuilder.getInstance().init(WeChatPropertiesFile.filename);
-        if (prop == null) {
-            throw new NullPointerException("<<======the wechat.properties file not found");
-        }
-        weChatAppId = prop.getProperty("weChatAppId");
-        weChatSecret = prop.getProperty("weChatSecret");
-        if (StringUtil.isEmpty(weChatAppId)) {
-            throw new IllegalArgumentException("<<======weChatAppId could not be null");
-        }
-        if (StringUtil.isEmpty(weChatSecret)) {
-            throw new IllegalArgumentException("<<======weChatSecret could not be null");
-        }
-        if (!StringUtil.isEmpty(prop.getProperty("expiredSecondOffset"))) {
-            expiredSecondOffset = Integer.parseInt(prop.getProperty("expiredSecondOffset"));
-        }
-
-        cacheManager = CacheManager.getInstance();
-        if (cacheManager.cacheOn) {
-            String rootKey = prop.getProperty("rootKey");
-            if (StringUtil.isEmpty(rootKey)) {
-                throw new IllegalArgumentException("<<======rootKey could not be null");
-            }
-            if (!rootKey.endsWith(".")) {
-                rootKey += ".";
-            }
-            cacheKeyForAccessToken = rootKey + "ACCESS_TOKEN";
-            cacheKeyForJsApiTicket = rootKey + "JS_API_TICKET";
-        } else {
-            accessToken = AccessToken.getInstance();
-            jsApiTicket = JsApiTicket.getInstance();
-        }
+        client = WeChatClientRegistry.getInstance().getDefault();
     }
 
     public static OAuthUserInfo getOauthInfo(String code) {
-        if (StringUtil.isEmpty(code)) {
-            throw new AppException("code could not be null");
-        }
-        OAuthUserInfo oAuthUserInfo = null;
-        try {
-            String url = WeChatUrlFormat.GET_OAUTH_TOKEN.format(weChatAppId, weChatSecret, code);
-            JSONObject jsonObject = JSONObject.parseObject(httpGet(url));
-            if (StringUtil.isEmpty(jsonObject.getString("openid"))) {
-                logger.error("<<======WeChatHelper.getOpenid:code=" + code + "======" + jsonObject.toJSONString());
-                return null;
-            }
-            oAuthUserInfo = new OAuthUserInfo();
-            oAuthUserInfo.setOpenid(jsonObject.getString("openid"));
-            oAuthUserInfo.setAccessToken(jsonObject.getString("access_token"));
-            oAuthUserInfo.setRefreshToken(jsonObject.getString("refresh_token"));
-            oAuthUserInfo.setExpiredSecond(jsonObject.getInteger("expires_in") - expiredSecondOffset);
-        } catch (Exception e) {
-            e.printStackTrace();
-            logger.error("<<======WeChatHelper.getOpenid:code=" + code);
-        }
-        return oAuthUserInfo;
+        return client.getOauthInfo(code);
     }
 
+    /**
+     * 获取用户信息
+     * 优先读取UserInfoCache,未命中时请求微信服务器并写入缓存
+     */
     public static WeChatUserInfo getUserInfo(String openid) {
-        WeChatUserInfo weChatUserInfo = null;
-        try {
-            String url = WeChatUrlFormat.GET_USER_INFO.format(getAccessToken(), openid);
-            JSONObject jsonObject = JSONObject.parseObject(httpGet(url));
-            if (jsonObject.getInteger("subscribe") == 0) {
-                logger.info("<<======WeChatHelper.getUserInfo:the user is not subscribed, openid =" + openid);
-                return null;
-            }
-            weChatUserInfo = new WeChatUserInfo();
-            weChatUserInfo.setOpenid(openid);
-            weChatUserInfo.setNickname(jsonObject.getString("nickname"));
-            int sex = StringUtil.isEmpty(jsonObject.getString("sex")) ?
-                    0 : Integer.parseInt(jsonObject.getString("sex"));
-            weChatUserInfo.setSex(sex);
-            weChatUserInfo.setProvince(jsonObject.getString("province"));
-            weChatUserInfo.setCity(jsonObject.getString("city"));
-            weChatUserInfo.setCountry(jsonObject.getString("country"));
-            weChatUserInfo.setHeadImgUrl(jsonObject.getString("headimgurl"));
-            weChatUserInfo.setPrivilegeAsJson(jsonObject.getJSONArray("privilege"));
-            weChatUserInfo.setUnionid(jsonObject.containsKey("unionid") ? jsonObject.getString("unionid") : null);
-            weChatUserInfo.setSubscribeTime(jsonObject.getDate("subscribe_time"));
-        } catch (Exception e) {
-            e.printStackTrace();
-            logger.error("<<======WeChatHelper.getUserInfo:openid=" + openid);
-        }
-        return weChatUserInfo;
+        return client.getUserInfo(openid);
+    }
+
+    /**
+     * 批量获取用户信息
+     * 每100个openid合并为一次user/info/batchget请求,各批次在batchConcurrency限定的并发数内并行执行;
+     * 未关注公众号的用户不包含在返回结果中;任一批次请求失败时抛出AppException,不返回部分结果
+     *
+     * @return openid为key的用户信息,顺序与openids一致
+     */
+    public static Map<String, WeChatUserInfo> getUserInfoBatch(Collection<String> openids) {
+        return client.getUserInfoBatch(openids);
+    }
+
+    /**
+     * 关注者openid流
+     * 按需逐页请求,内存中仅保留当前页;请求失败时抛出AppException
+     */
+    public static Stream<String> getFollowers() {
+        return client.getFollowers();
+    }
+
+    /**
+     * 关注者信息流
+     * 获取当前页用户信息的同时预取下一页openid,内存占用与关注者总数无关;请求失败时抛出AppException
+     */
+    public static Stream<WeChatUserInfo> getFollowerInfos() {
+        return client.getFollowerInfos();
     }
 
     public static WeChatUserInfo getUserInfoByOAuth(OAuthUserInfo oAuthUserInfo) {
-        if (oAuthUserInfo == null || StringUtil.isEmpty(oAuthUserInfo.getOpenid())) {
-            throw new AppException("openid could not be null");
-        }
-        if (oAuthUserInfo.isExpired()) {
-            throw new AppException("the access_token is expired");
-        }
-        WeChatUserInfo weChatUserInfo = null;
-        String openid = oAuthUserInfo.getOpenid();
-        try {
-            String url = WeChatUrlFormat.GET_USER_INFO_BY_OAUTH.format(oAuthUserInfo.getAccessToken(), openid);
-            JSONObject jsonObject = JSONObject.parseObject(httpGet(url));
-            weChatUserInfo = new WeChatUserInfo();
-            weChatUserInfo.setOpenid(openid);
-            weChatUserInfo.setNickname(jsonObject.getString("nickname"));
-            int sex = StringUtil.isEmpty(jsonObject.getString("sex")) ?
-                    0 : Integer.parseInt(jsonObject.getString("sex"));
-            weChatUserInfo.setSex(sex);
-            weChatUserInfo.setProvince(jsonObject.getString("province"));
-            weChatUserInfo.setCity(jsonObject.getString("city"));
-            weChatUserInfo.setCountry(jsonObject.getString("country"));
-            weChatUserInfo.setHeadImgUrl(jsonObject.getString("headimgurl"));
-            weChatUserInfo.setPrivilegeAsJson(jsonObject.getJSONArray("privilege"));
-            weChatUserInfo.setUnionid(jsonObject.containsKey("unionid") ? jsonObject.getString("unionid") : null);
-        } catch (Exception e) {
-            e.printStackTrace();
-            logger.error("<<======WeChatHelper.getUserInfoFromOAuth:openid=" + openid);
-        }
-        return weChatUserInfo;
+        return client.getUserInfoByOAuth(oAuthUserInfo);
     }
 
     /**
@@ -175,172 +93,92 @@ public class WeChatHelper {
      * 3、认证未过期.
      */
     public static OAuthUserInfo refreshAccessToken(OAuthUserInfo oAuthUserInfo) {
-        if (oAuthUserInfo == null
-                || StringUtil.isEmpty(oAuthUserInfo.getRefreshToken())
-                || !oAuthUserInfo.isExpired()) {
-            return oAuthUserInfo;
-        }
-        try {
-            String url = WeChatUrlFormat.REFRESH_OAUTH_TOKEN.format(weChatAppId, oAuthUserInfo.getRefreshToken());
-            JSONObject jsonObject = JSONObject.parseObject(httpGet(url));
-            if (StringUtil.isEmpty(jsonObject.getString("access_token"))) {
-                logger.error("<<======WeChatHelper.refreshSpecialAccessToken:" + jsonObject.toJSONString());
-                return oAuthUserInfo;
-            }
-            oAuthUserInfo.setAccessToken(jsonObject.getString("access_token"));
-            oAuthUserInfo.setRefreshToken(jsonObject.getString("refresh_token"));
-            oAuthUserInfo.setExpiredSecond(jsonObject.getInteger("expires_in") - expiredSecondOffset);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return oAuthUserInfo;
+        return client.refreshAccessToken(oAuthUserInfo);
     }
 
     /**
      * 获取access_token
-     * 如果启用了外部缓存,则从缓存中获取
+     * 读取内存中的快照,快照由后台线程在失效前刷新;
+     * 如果启用了外部缓存,则刷新时优先从缓存中获取
      */
     public static String getAccessToken() {
-        if (cacheManager.cacheOn) {
-            if (StringUtil.isEmpty(getAccessTokenFromCache())) {
-                queryAccessToken();
-            }
-            return getAccessTokenFromCache();
-        }
-        if (StringUtil.isEmpty(accessToken.getAccessToken()) || accessToken.isExpired()) {
-            queryAccessToken();
-        }
-        return accessToken.getAccessToken();
+        return client.getAccessToken();
+    }
+
+    /**
+     * 获取仍有效的access_token快照,快照失效时返回null而不触发刷新
+     */
+    static String peekAccessToken() {
+        return client.peekAccessToken();
     }
 
     /**
      * 获取js_api_ticket
-     * 如果启用了外部缓存,则从缓存中获取
+     * 规则同access_token
      */
     public static String getJsApiTicket() {
-        if (cacheManager.cacheOn) {
-            if (StringUtil.isEmpty(getJsApiTicketFromCache())) {
-                queryJsApiTicket();
-            }
-            return getJsApiTicketFromCache();
-        }
-        if (StringUtil.isEmpty(jsApiTicket.getTicket()) || jsApiTicket.isExpired()) {
-            queryJsApiTicket();
-        }
-        return jsApiTicket.getTicket();
+        return client.getJsApiTicket();
     }
 
     /**
-     * 1、对 js_api_ticket、 timestamp 和 nonce 按字典排序
-     * 对所有待签名参数按照字段名的 ASCII码从小到大排序（字典序）后,
-     * 使用 URL 键值对的格式（即key1=value1&key2=value2…）拼接成字符串string1.
-     * 这里需要注意的是所有参数名均为小写字符.
-     * 2、接下来对 string1 作 sha1 加密,字段名和字段值都采用原始值,不进行URL 转义.
-     * 即 signature=sha1(string1).
-     * 如果没有按照生成的key1=value&key2=value拼接的话会报错
+     * js-sdk签名,url中#及其后面的部分不参与签名;url为空或未能取得js_api_ticket时抛出AppException
      */
     public static Signature getSignature(String url) {
-        Signature signature = new Signature();
-        signature.setAppId(weChatAppId);
-        signature.setNonceStr(RandomStringUtils.random(16, true, true));
-        signature.setTimestamp(String.valueOf(System.currentTimeMillis() / 1000));
-
-        String[] params = new String[]{
-                "jsapi_ticket=" + getJsApiTicket(),
-                "timestamp=" + signature.getTimestamp(),
-                "noncestr=" + signature.getNonceStr(),
-                "url=" + url};
-        Arrays.sort(params);
-        String param = params[0].concat("&" + params[1]).concat("&" + params[2]).concat("&" + params[3]);
-        try {
-            signature.setSignature(SHA1.sign(param.getBytes("utf-8")));
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return signature;
-    }
-
-    protected static String getOAuthUrl(String redirectURI, String state) {
-        state = StringUtil.isEmpty(state) ? "" : state;
-        return WeChatUrlFormat.OAUTH_URL.format(weChatAppId, redirectURI, state);
-    }
-
-    private static void queryAccessToken() {
-        try {
-            String url = WeChatUrlFormat.GET_ACCESS_TOKEN.format(weChatAppId, weChatSecret);
-            JSONObject jsonObject = JSONObject.parseObject(httpGet(url));
-            if (StringUtil.isEmpty(jsonObject.getString("access_token"))) {
-                logger.error("<<======WeChatHelper.queryAccessToken:" + jsonObject.toJSONString());
-                return;
-            }
-            setAccessToken(jsonObject.getString("access_token"), jsonObject.getInteger("expires_in") - expiredSecondOffset);
-        } catch (AppException e) {
-            throw e;
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        return client.getSignature(url);
     }
 
     /**
-     * 存储access_token
-     * 若开启了外部缓存,则不再于内存中维护access_token
+     * 批量签名,共用同一js_api_ticket及签名窗口
+     *
+     * @return url为key的签名,顺序与urls一致
      */
-    private static void setAccessToken(String token, int expiredSecond) {
-        if (cacheManager.cacheOn) {
-            setAccessToken2Cache(token, expiredSecond);
-            return;
-        }
-        accessToken.setAccessToken(token);
-        accessToken.setExpiredSecond(expiredSecond);
-    }
-
-    private static void setAccessToken2Cache(String token, Integer expiresIn) {
-        cacheManager.setValue(cacheKeyForAccessToken, token, expiresIn);
+    public static Map<String, Signature> getSignatures(Collection<String> urls) {
+        return client.getSignatures(urls);
     }
 
-    private static String getAccessTokenFromCache() {
-        return cacheManager.getValue(cacheKeyForAccessToken);
+    /**
+     * 发送客服消息
+     *
+     * @param message 客服消息json,如{"touser":"OPENID","msgtype":"text","text":{"content":"Hello"}}
+     * @return 是否发送成功
+     */
+    public static boolean sendCustomerMessage(JSONObject message) {
+        return client.sendCustomerMessage(message);
     }
 
-    private static void queryJsApiTicket() {
-        try {
-            String url = WeChatUrlFormat.GET_JS_API_TICKET.format(getAccessToken());
-            JSONObject jsonObject = JSONObject.parseObject(httpGet(url));
-            if (StringUtil.isEmpty(jsonObject.getString("ticket"))) {
-                logger.error("<<======WeChatHelper.queryJsApiTicket:" + jsonObject.toJSONString());
-                return;
-            }
-            setJsApiTicket(jsonObject.getString("ticket"), jsonObject.getInteger("expires_in") - expiredSecondOffset);
-        } catch (AppException e) {
-            throw e;
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * 群发客服消息,所有消息发送完成后返回
+     *
+     * @see CustomerMessageSender#send(Stream, Consumer)
+     */
+    public static MessageSendStats sendCustomerMessages(Stream<JSONObject> messages, Consumer<MessageSendResult> callback) {
+        return client.sendCustomerMessages(messages, callback);
     }
 
     /**
-     * 存储js_ticket
-     * 若开启了外部缓存,则不再于内存中维护js_ticket
+     * 发送模板消息,所有消息发送完成后返回
+     *
+     * @see TemplateMessageSender#send(Stream, Consumer)
      */
-    private static void setJsApiTicket(String ticket, int expiresIn) {
-        if (cacheManager.cacheOn) {
-            setJsApiTicket2Cache(ticket, expiresIn);
-            return;
-        }
-        jsApiTicket.setTicket(ticket);
-        jsApiTicket.setExpiresSecond(expiresIn);
+    public static MessageSendStats sendTemplateMessages(Stream<JSONObject> messages, Consumer<MessageSendResult> callback) {
+        return client.sendTemplateMessages(messages, callback);
     }
 
-    private static void setJsApiTicket2Cache(String ticket, int expiresIn) {
-        cacheManager.setValue(cacheKeyForJsApiTicket, ticket, expiresIn);
+    /**
+     * 默认公众号的接口调用配额
+     */
+    public static QuotaGovernor getQuotaGovernor() {
+        return client.getQuotaGovernor();
     }
 
-    private static String getJsApiTicketFromCache() {
-        return cacheManager.getValue(cacheKeyForJsApiTicket);
+    /**
+     * 默认公众号的接口重试及熔断
+     */
+    public static UpstreamGuard getUpstreamGuard() {
+        return client.getUpstreamGuard();
     }
 
-    private static String httpGet(String url) throws IOException, HttpException {
-        MyHttpClient myHttpClient = new MyHttpClient();
-        return myHttpClient.get(url, null);
+    protected static String getOAuthUrl(String redirectURI, String state) {
+        return client.getOAuthUrl(redirectURI, state);
     }
 }
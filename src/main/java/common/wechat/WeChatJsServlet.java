@@ -1,34 +1,126 @@
 package common.wechat;
 
+import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import common.tools.StringUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * @author LongerHsiao
  * @date 2018-1-15
  */
 public class WeChatJsServlet extends HttpServlet {
+    private static Logger logger = LoggerFactory.getLogger(WeChatJsServlet.class);
+
+    // 单次批量签名的url数上限
+    private static final int MAX_BATCH_SIZE = 20;
+
     /**
      * @api WeChatJsServlet 2、微信js-sdk签名服务
      * @apiGroup Servlet
      * @apiName WeChatJsServlet
      * @apiVersion 1.0.0
+     * @apiDescription GET请求参数url为待签名页面地址；POST请求体为url的json数组，一次最多签名20个url，返回以url为key的签名。<br/>
+     * web.xml中配置&lt;async-supported&gt;true&lt;/async-supported&gt;后，签名在线程池中计算并以非阻塞方式写出。<br/>
      */
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         String url = req.getParameter("url");
-        if (StringUtil.isEmpty(url) ||
-                !(url.startsWith("http://") || (url.startsWith("https://")))) {
+        if (!isValidUrl(url)) {
             return;
         }
         resp.setHeader("Access-Control-Allow-Origin", "*");
         resp.setHeader("Access-Control-Allow-Headers", "Content-Type");
-        resp.getWriter().write(JSONObject.toJSONString(WeChatHelper.getSignature(req.getParameter("url"))));
+        if (!req.isAsyncSupported()) {
+            resp.getOutputStream().write(sign(url));
+            return;
+        }
+        // 等待js_api_ticket刷新及写出响应期间不占用容器线程
+        resp.setCharacterEncoding("UTF-8");
+        AsyncContext asyncContext = req.startAsync();
+        WeChatAsyncHelper.submit(() -> sign(url))
+                // 线程池已满时在当前线程签名
+                .exceptionally(e -> sign(url))
+                .thenAccept(content -> AsyncResponseWriter.write(asyncContext, content));
+    }
+
+    /**
+     * 批量签名,请求体为url的json数组,如["https://a.com/x", "https://a.com/y"]
+     * 返回以url为key的签名json,不合法的url不包含在结果中
+     */
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setHeader("Access-Control-Allow-Origin", "*");
+        resp.setHeader("Access-Control-Allow-Headers", "Content-Type");
+        resp.setContentType("application/json;charset=utf-8");
+        if (!req.isAsyncSupported()) {
+            resp.getOutputStream().write(signBatch(readBody(req.getInputStream())));
+            return;
+        }
+        AsyncContext asyncContext = req.startAsync();
+        AsyncBodyReader.read(asyncContext, body -> WeChatAsyncHelper.submit(() -> signBatch(body))
+                .exceptionally(e -> signBatch(body))
+                .thenAccept(content -> AsyncResponseWriter.write(asyncContext, content)));
+    }
+
+    @Override
+    protected void doOptions(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setHeader("Access-Control-Allow-Origin", "*");
+        resp.setHeader("Access-Control-Allow-Headers", "Content-Type");
+        resp.setHeader("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
+        super.doOptions(req, resp);
+    }
+
+    private static byte[] readBody(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+        byte[] chunk = new byte[1024];
+        int length;
+        while ((length = inputStream.read(chunk)) != -1) {
+            body.write(chunk, 0, length);
+        }
+        return body.toByteArray();
+    }
+
+    private static byte[] signBatch(byte[] body) {
+        Set<String> urls = new LinkedHashSet<>();
+        try {
+            JSONArray array = JSONArray.parseArray(new String(body, StandardCharsets.UTF_8));
+            for (int i = 0; array != null && i < array.size() && urls.size() < MAX_BATCH_SIZE; i++) {
+                String url = array.getString(i);
+                if (isValidUrl(url)) {
+                    urls.add(url);
+                }
+            }
+            return JSONObject.toJSONString(WeChatHelper.getSignatures(urls)).getBytes(StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            logger.error("<<======WeChatJsServlet.signBatch:urls=" + urls, e);
+            return new byte[0];
+        }
+    }
+
+    private static boolean isValidUrl(String url) {
+        return !StringUtil.isEmpty(url) && (url.startsWith("http://") || url.startsWith("https://"));
+    }
+
+    private static byte[] sign(String url) {
+        try {
+            return JSONObject.toJSONString(WeChatHelper.getSignature(url)).getBytes(StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            logger.error("<<======WeChatJsServlet.sign:url=" + url, e);
+            return new byte[0];
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,162 @@
+package common.wechat;
+
+import com.alibaba.fastjson.JSONObject;
+import common.tools.StringUtil;
+import common.wechat.message.ReplyMessage;
+import common.wechat.message.WeChatMessageHandler;
+import common.wechat.message.WeChatRequestMessage;
+import common.wechat.util.ConfigBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @api WeChatMessageDispatcher 3、微信消息异步处理
+ * @apiGroup Servlet
+ * @apiName WeChatMessageDispatcher
+ * @apiVersion 1.0.0
+ * @apiParam {Boolean} messageAsync 是否异步处理由MessageRouter路由到进程内处理方的消息[默认false]
+ * @apiParam {Number} messageWorkers 处理消息的线程数[默认4]
+ * @apiParam {Number} messageQueueSize 消息排队上限[默认1000]
+ * @apiParam {String} messageRejectPolicy 队列已满时的处理方式[默认callerRuns，在请求线程中处理并被动回复；drop则丢弃并回复success]
+ * @apiDescription 异步模式下WeChatMessageServlet立即回复"success"(或handler的快速回复)，消息交由有界线程池处理，
+ * 处理结果通过客服消息接口发送给用户，避免处理耗时超过5秒导致微信重试。<br/>
+ */
+public final class WeChatMessageDispatcher {
+    private static Logger logger = LoggerFactory.getLogger(WeChatMessageDispatcher.class);
+
+    private WeChatMessageDispatcher() {
+        init();
+    }
+
+    private static class WeChatMessageDispatcherHolder {
+        private static final WeChatMessageDispatcher INSTANCE = new WeChatMessageDispatcher();
+    }
+
+    public static WeChatMessageDispatcher getInstance() {
+        return WeChatMessageDispatcherHolder.INSTANCE;
+    }
+
+    private boolean async = false;
+    private boolean callerRuns = true;
+    private ThreadPoolExecutor executor;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong callerRunCount = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private void init() {
+        Properties prop = ConfigBuilder.getInstance().init(WeChatPropertiesFile.filename);
+        if (prop == null) {
+            return;
+        }
+        async = Boolean.parseBoolean(prop.getProperty("messageAsync"));
+        if (!async) {
+            return;
+        }
+        callerRuns = !"drop".equals(prop.getProperty("messageRejectPolicy"));
+        int workers = StringUtil.isEmpty(prop.getProperty("messageWorkers")) ?
+                4 : Integer.parseInt(prop.getProperty("messageWorkers"));
+        int queueSize = StringUtil.isEmpty(prop.getProperty("messageQueueSize")) ?
+                1000 : Integer.parseInt(prop.getProperty("messageQueueSize"));
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "wechat-message-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 是否以异步模式处理消息
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * 将消息交由线程池处理
+     *
+     * @return 需立即被动回复的消息,为null时回复"success"
+     */
+    public ReplyMessage dispatch(WeChatMessageHandler handler, WeChatRequestMessage message) {
+        submitted.incrementAndGet();
+        try {
+            executor.execute(() -> process(handler, message));
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            if (callerRuns) {
+                callerRunCount.incrementAndGet();
+                return handle(handler, message);
+            }
+            dropped.incrementAndGet();
+            logger.warn("<<======WeChatMessageDispatcher.dispatch:queue full, dropped, openid="
+                    + message.getFromUserName());
+            return null;
+        }
+        return handler.acknowledge(message);
+    }
+
+    /**
+     * 在当前线程中处理消息,处理异常时返回null
+     */
+    ReplyMessage handle(WeChatMessageHandler handler, WeChatRequestMessage message) {
+        try {
+            ReplyMessage reply = handler.handle(message);
+            completed.incrementAndGet();
+            return reply;
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            logger.error("<<======WeChatMessageDispatcher.handle:openid=" + message.getFromUserName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 在工作线程中处理消息,回复以客服消息发送
+     */
+    private void process(WeChatMessageHandler handler, WeChatRequestMessage message) {
+        ReplyMessage reply;
+        try {
+            reply = handler.handle(message);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            logger.error("<<======WeChatMessageDispatcher.process:openid=" + message.getFromUserName(), e);
+            return;
+        }
+        if (reply != null) {
+            JSONObject customerMessage = reply.toCustomerMessage(message.getFromUserName());
+            if (customerMessage == null) {
+                logger.warn("<<======WeChatMessageDispatcher.process:unsupported reply "
+                        + reply.getClass().getName());
+            } else if (!WeChatHelper.sendCustomerMessage(customerMessage)) {
+                failed.incrementAndGet();
+                return;
+            }
+        }
+        completed.incrementAndGet();
+    }
+
+    /**
+     * 异步处理情况,未启用异步模式时返回null
+     */
+    public MessageDispatchStats getStats() {
+        if (executor == null) {
+            return null;
+        }
+        return new MessageDispatchStats(submitted.get(), rejected.get(), callerRunCount.get(), dropped.get(),
+                completed.get(), failed.get(), executor.getQueue().size(), executor.getActiveCount());
+    }
+}
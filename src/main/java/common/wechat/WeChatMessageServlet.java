@@ -1,23 +1,29 @@
 package common.wechat;
 
-import com.alibaba.fastjson.JSONObject;
 import common.tools.StringUtil;
 import common.wechat.aes.AesException;
 import common.wechat.aes.BusinessCrypt;
+import common.wechat.message.ReplyMessage;
+import common.wechat.message.WeChatMessageHandler;
+import common.wechat.message.WeChatRequestMessage;
 import common.wechat.util.ConfigBuilder;
 import common.wechat.util.XmlUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
-import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Properties;
 
 /**
@@ -29,14 +35,25 @@ import java.util.Properties;
  * @apiGroup Servlet
  * @apiName WeChatMessageServlet
  * @apiVersion 1.0.0
+ * @apiParam {Number} messageDedupeSize 重复推送过滤记录的消息数上限[默认10000，为0时不过滤]
+ * @apiParam {Number} messageDedupeSecond 重复推送过滤的时间窗口秒数[默认30秒]
+ * @apiParam {Number} messageDedupeWaitMillis 重复推送等待首次处理回复的时长[默认4000毫秒，超时回复success]
+ * @apiParam {Boolean} messageDedupeRedis 是否以redis记录已处理的消息供集群共享[默认false，需启用缓存并配置rootKey]
+ * @apiDescription web.xml中配置&lt;async-supported&gt;true&lt;/async-supported&gt;后，请求体以非阻塞方式读取，
+ * 进程内处理方在线程池中执行，回复以非阻塞方式写出，期间不占用容器线程；rewardPatterns转发路径仍回到容器线程中执行。<br/>
  */
 public class WeChatMessageServlet extends HttpServlet {
     private static Logger logger = LoggerFactory.getLogger(WeChatMessageServlet.class);
 
+    private static final byte[] SUCCESS = "success".getBytes(StandardCharsets.US_ASCII);
+    private static final String MESSAGE_ATTRIBUTE = WeChatMessageServlet.class.getName() + ".message";
+    // 微信等待回复的时长为5秒
+    private static final long ASYNC_TIMEOUT_MILLIS = 10 * 1000L;
+
     private String weChatAppId;
     private String encodingAesKey;
     private String token;
-    private JSONObject rewardPatterns;
+    private BusinessCrypt businessCrypt;
 
     @Override
     public void init(ServletConfig config) throws ServletException {
@@ -47,9 +64,12 @@ public class WeChatMessageServlet extends HttpServlet {
             throw new IllegalArgumentException("<<======weChatAppId could not be null");
         }
         encodingAesKey = prop.getProperty("encodingAesKey");
-        String patterns = prop.getProperty("rewardPatterns");
-        if (!StringUtil.isEmpty(patterns)) {
-            rewardPatterns = JSONObject.parseObject(patterns);
+        if (!StringUtil.isEmpty(encodingAesKey)) {
+            try {
+                businessCrypt = new BusinessCrypt(token, encodingAesKey, weChatAppId);
+            } catch (AesException e) {
+                logger.error("<<======WeChatMessageServlet.init:encodingAesKey", e);
+            }
         }
     }
 
@@ -62,8 +82,10 @@ public class WeChatMessageServlet extends HttpServlet {
         if (StringUtil.isEmpty(signature) || StringUtil.isEmpty(timestamp) || StringUtil.isEmpty(nonce)) {
             return;
         }
+        if (businessCrypt == null) {
+            return;
+        }
         try {
-            BusinessCrypt businessCrypt = new BusinessCrypt(token, encodingAesKey, weChatAppId);
             if (businessCrypt.verifyUrl(signature, timestamp, nonce)) {
                 resp.getWriter().write(echoStr);
             }
@@ -74,79 +96,201 @@ public class WeChatMessageServlet extends HttpServlet {
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        resp.setContentType("application/json;charset=utf-8");
-        resp.addHeader("Access-Control-Allow-Origin", req.getHeader("Origin"));
-        resp.setHeader("Access-Control-Allow-Credentials", "true");
-        resp.addHeader("P3P", "CP=CAO PSA OUR");
+        if (req.getDispatcherType() != DispatcherType.ASYNC) {
+            resp.setContentType("application/json;charset=utf-8");
+            resp.addHeader("Access-Control-Allow-Origin", req.getHeader("Origin"));
+            resp.setHeader("Access-Control-Allow-Credentials", "true");
+            resp.addHeader("P3P", "CP=CAO PSA OUR");
+        }
+
+        // 安全模式下消息体为密文,回复也需加密
+        boolean encrypted = "aes".equals(req.getParameter("encrypt_type"));
+        if (encrypted && businessCrypt == null) {
+            logger.error("<<======encrypt_type=aes but encodingAesKey is not configured");
+            return;
+        }
+        String timestamp = req.getParameter("timestamp");
+        String nonce = req.getParameter("nonce");
+
+        WeChatRequestMessage message;
+        if (req.getDispatcherType() == DispatcherType.ASYNC) {
+            // 异步读取后需转发的消息,由AsyncContext.dispatch回到容器线程处理
+            message = (WeChatRequestMessage) req.getAttribute(MESSAGE_ATTRIBUTE);
+        } else if (req.isAsyncSupported()) {
+            AsyncContext asyncContext = req.startAsync();
+            asyncContext.setTimeout(ASYNC_TIMEOUT_MILLIS);
+            AsyncBodyReader.read(asyncContext,
+                    body -> onBody(asyncContext, body, req, resp, encrypted, timestamp, nonce));
+            return;
+        } else {
+            message = parse(req.getInputStream(), req, encrypted);
+        }
+        if (message == null) {
+            return;
+        }
+        byte[] reply = process(req, resp, message, MessageRouter.getInstance().route(message), encrypted, false);
+        if (reply != null) {
+            resp.getOutputStream().write(encode(reply, encrypted, timestamp, nonce));
+        }
+    }
+
+    /**
+     * 请求体读取完成
+     * 转发路径需在容器线程中执行,其余消息在线程池中处理后以非阻塞方式写出回复
+     */
+    private void onBody(AsyncContext asyncContext, byte[] body, HttpServletRequest req, HttpServletResponse resp,
+                        boolean encrypted, String timestamp, String nonce) {
+        WeChatRequestMessage message = parse(new ByteArrayInputStream(body), req, encrypted);
+        if (message == null) {
+            asyncContext.complete();
+            return;
+        }
+        MessageRouter.Route route = MessageRouter.getInstance().route(message);
+        if (route != null && route.getForwardPath() != null) {
+            req.setAttribute(MESSAGE_ATTRIBUTE, message);
+            asyncContext.dispatch();
+            return;
+        }
+        WeChatAsyncHelper.submit(() -> processAsync(req, resp, message, route, encrypted, timestamp, nonce))
+                // 线程池已满时在当前线程处理
+                .exceptionally(e -> processAsync(req, resp, message, route, encrypted, timestamp, nonce))
+                .thenAccept(content -> AsyncResponseWriter.write(asyncContext, content));
+    }
 
-        Map<String, Object> requestMap = new HashMap<>();
+    private byte[] processAsync(HttpServletRequest req, HttpServletResponse resp, WeChatRequestMessage message,
+                                MessageRouter.Route route, boolean encrypted, String timestamp, String nonce) {
+        try {
+            return encode(process(req, resp, message, route, encrypted, true), encrypted, timestamp, nonce);
+        } catch (Exception e) {
+            logger.error("<<======WeChatMessageServlet.processAsync:openid=" + message.getFromUserName(), e);
+            return new byte[0];
+        }
+    }
 
+    /**
+     * 解析消息,安全模式下先校验签名并解密
+     *
+     * @return 解密失败时返回null
+     */
+    private WeChatRequestMessage parse(InputStream inputStream, HttpServletRequest req, boolean encrypted) {
+        WeChatRequestMessage message = new WeChatRequestMessage();
         try {
-            ServletInputStream inputStream = req.getInputStream();
-            requestMap.putAll(XmlUtils.xmlToMap(inputStream));
+            XmlUtils.readMessage(inputStream, message);
+            if (encrypted) {
+                byte[] plain = businessCrypt.decryptMsgBytes(req.getParameter("msg_signature"),
+                        req.getParameter("timestamp"), req.getParameter("nonce"), message.getEncrypt());
+                message.reset();
+                XmlUtils.readMessage(new ByteArrayInputStream(plain), message);
+            }
+        } catch (AesException e) {
+            logger.error("decrypt message, code=" + e.getCode(), e);
+            return null;
         } catch (Exception e) {
             logger.error("parse xml", e);
         }
+        return message;
+    }
+
+    /**
+     * @param buffered 是否需要取得回复内容
+     * @return 未加密的回复,已直接写出时返回null
+     */
+    private byte[] process(HttpServletRequest req, HttpServletResponse resp, WeChatRequestMessage message,
+                           MessageRouter.Route route, boolean encrypted, boolean buffered)
+            throws ServletException, IOException {
+        String event = message.getEvent();
+
+        // 关注状态变化后缓存的用户信息不再准确
+        if ("subscribe".equals(event) || "unsubscribe".equals(event)) {
+            UserInfoCache.getInstance().evict(message.getFromUserName());
+        }
+        // 用户互动后48小时内可发送客服消息
+        InteractionTracker.getInstance().record(message);
 
-        String msgType = (String) requestMap.get("MsgType");
-        String event = (String) requestMap.get("Event");
-        String eventKey = (String) requestMap.get("EventKey");
+        // 重复推送不再处理,返回首次处理的回复
+        MessageDeduplicator deduplicator = MessageDeduplicator.getInstance();
+        String dedupeKey = deduplicator.keyOf(message);
+        if (dedupeKey != null && !deduplicator.tryBegin(dedupeKey)) {
+            logger.info("<<======duplicate message " + dedupeKey);
+            byte[] cached = deduplicator.awaitReply(dedupeKey);
+            return cached == null ? SUCCESS : cached;
+        }
+        byte[] reply = null;
+        try {
+            reply = handle(req, resp, message, route, encrypted, buffered || dedupeKey != null);
+            return reply;
+        } finally {
+            if (dedupeKey != null) {
+                deduplicator.complete(dedupeKey, reply);
+            }
+        }
+    }
 
-        String pattern;
-        switch (msgType) {
-            case "event":
-                pattern = getRewardPatternByEventType(event, eventKey);
-                break;
-            case "text":
-                logger.info("<<======fire text reply");
-                pattern = getRewardPattern("textReply");
-                break;
-            default:
-                logger.info("<<======fire default");
-                pattern = getRewardPattern("default");
+    /**
+     * 处理消息
+     *
+     * @param buffered 是否需要取得回复内容
+     * @return 未加密的回复,已直接写出时返回null
+     */
+    private byte[] handle(HttpServletRequest req, HttpServletResponse resp, WeChatRequestMessage message,
+                          MessageRouter.Route route, boolean encrypted, boolean buffered)
+            throws ServletException, IOException {
+        if (route == null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("<<======no route for " + message.getMsgType() + "/" + message.getEvent());
+            }
+            return new byte[0];
+        }
+        WeChatMessageHandler handler = route.getHandler();
+        if (handler != null) {
+            // 异步模式下立即回复,消息交由线程池处理
+            WeChatMessageDispatcher dispatcher = WeChatMessageDispatcher.getInstance();
+            if (dispatcher.isAsync()) {
+                return toBytes(dispatcher.dispatch(handler, message));
+            }
+            return toBytes(dispatcher.handle(handler, message));
         }
 
-        if (!StringUtil.isEmpty(pattern)) {
-            req.setAttribute("weChatParams", requestMap);
+        String pattern = route.getForwardPath();
+        req.setAttribute("weChatParams", message.toMap());
+        req.setAttribute("weChatMessage", message);
+        if (!encrypted && !buffered) {
             req.getRequestDispatcher(pattern).forward(req, resp);
+            return null;
+        }
+        BufferedResponseWrapper wrapper = new BufferedResponseWrapper(resp);
+        req.getRequestDispatcher(pattern).forward(req, wrapper);
+        return wrapper.toByteArray();
+    }
+
+    /**
+     * 被动回复内容,reply为null时回复"success"
+     */
+    private static byte[] toBytes(ReplyMessage reply) throws IOException {
+        if (reply == null) {
+            return SUCCESS;
         }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+        reply.writeTo(buffer);
+        return buffer.toByteArray();
     }
 
-    private String getRewardPatternByEventType(String event, String eventKey) {
-        String pattern;
-        switch (event) {
-            case "subscribe":
-                logger.info("<<======fire subscribe");
-                pattern = getRewardPattern("subscribe");
-                break;
-            case "unsubscribe":
-                logger.info("<<======fire unSubscribe");
-                pattern = getRewardPattern("unSubscribe");
-                break;
-            case "scancode_waitmsg":
-                logger.info("<<======fire scanCodeWaitMsg");
-                pattern = getRewardPattern("scanCodeWaitMsg");
-                break;
-            case "CLICK":
-                logger.info("<<======fire CLICK, eventKey:" + eventKey);
-                pattern = getRewardPattern(eventKey);
-                break;
-            case "SCAN":
-                logger.info("<<======fire SCAN");
-                pattern = getRewardPattern("scan");
-                break;
-            case "VIEW":
-                logger.info("<<======fire VIEW");
-                pattern = getRewardPattern("view");
-                break;
-            default:
-                logger.info("<<======fire event default");
-                pattern = getRewardPattern("eventDefault");
-        }
-        return pattern;
+    /**
+     * 写出的回复内容,安全模式下加密,空回复及"success"原样返回
+     */
+    private byte[] encode(byte[] reply, boolean encrypted, String timestamp, String nonce) {
+        if (!encrypted || reply.length == 0 || isSuccess(reply)) {
+            return reply;
+        }
+        try {
+            return businessCrypt.encryptMsg(reply, 0, reply.length, timestamp, nonce).getBytes(StandardCharsets.UTF_8);
+        } catch (AesException e) {
+            logger.error("encrypt reply, code=" + e.getCode(), e);
+            return new byte[0];
+        }
     }
 
-    private String getRewardPattern(String key) {
-        return rewardPatterns.getString(key);
+    private static boolean isSuccess(byte[] reply) {
+        return Arrays.equals(reply, SUCCESS);
     }
 }
@@ -1,6 +1,9 @@
 package common.wechat;
 
-import java.text.MessageFormat;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author LongerHsiao
@@ -15,6 +18,10 @@ enum WeChatUrlFormat {
 
     GET_USER_INFO("https://api.weixin.qq.com/cgi-bin/user/info?access_token={0}&openid={1}&lang=zh_CN"),
 
+    BATCH_GET_USER_INFO("https://api.weixin.qq.com/cgi-bin/user/info/batchget?access_token={0}"),
+
+    GET_FOLLOWERS("https://api.weixin.qq.com/cgi-bin/user/get?access_token={0}&next_openid={1}"),
+
     GET_USER_INFO_BY_OAUTH("https://api.weixin.qq.com/sns/userinfo?access_token={0}&openid={1}&lang=zh_CN"),
 
     REFRESH_OAUTH_TOKEN("https://api.weixin.qq.com/sns/oauth2/refresh_token?appid={0}&grant_type=refresh_token&refresh_token={1}"),
@@ -27,17 +34,81 @@ enum WeChatUrlFormat {
 
     SEND_CUSTOMER_MSG("https://api.weixin.qq.com/cgi-bin/message/custom/send?access_token={0}");
 
-    private MessageFormat format;
+    // 以占位符切分后的字面量,literals[i]之后紧跟第indices[i]个参数
+    private final String[] literals;
+    private final int[] indices;
+    private final int literalLength;
+    private final int argumentCount;
 
     WeChatUrlFormat(String pattern) {
-        this.format = new MessageFormat(pattern);
+        List<String> literalList = new ArrayList<>();
+        List<Integer> indexList = new ArrayList<>();
+        int from = 0;
+        int open;
+        while ((open = pattern.indexOf('{', from)) >= 0) {
+            int close = pattern.indexOf('}', open);
+            literalList.add(pattern.substring(from, open));
+            indexList.add(Integer.parseInt(pattern.substring(open + 1, close)));
+            from = close + 1;
+        }
+        literalList.add(pattern.substring(from));
+        literals = literalList.toArray(new String[0]);
+        indices = new int[indexList.size()];
+        int length = 0;
+        int count = 0;
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = indexList.get(i);
+            count = Math.max(count, indices[i] + 1);
+        }
+        argumentCount = count;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        literalLength = length;
     }
 
+    /**
+     * 参数按UTF-8进行URL编码后填入,null视为空串
+     * 线程安全
+     */
     public String format(String... params) {
-        return format.format(params);
+        String[] encoded = new String[argumentCount];
+        int length = literalLength;
+        for (int i = 0; i < indices.length; i++) {
+            int index = indices[i];
+            if (encoded[index] == null) {
+                encoded[index] = index < params.length ? encode(params[index]) : "";
+            }
+            length += encoded[index].length();
+        }
+        StringBuilder url = new StringBuilder(length);
+        for (int i = 0; i < indices.length; i++) {
+            url.append(literals[i]).append(encoded[indices[i]]);
+        }
+        return url.append(literals[indices.length]).toString();
+    }
+
+    /**
+     * 不含需编码字符时直接返回原值
+     */
+    private static String encode(String value) {
+        if (value == null) {
+            return "";
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!isUnreserved(value.charAt(i))) {
+                try {
+                    return URLEncoder.encode(value, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return value;
     }
 
-    public MessageFormat getFormat() {
-        return format;
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '_' || c == '.' || c == '*';
     }
 }
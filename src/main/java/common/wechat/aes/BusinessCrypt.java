@@ -41,11 +41,21 @@
  */
 package common.wechat.aes;
 
+import common.wechat.message.WeChatRequestMessage;
 import common.wechat.util.SHA1;
+import common.wechat.util.XmlUtils;
 import org.apache.commons.codec.binary.Base64;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * 提供接收和推送给公众平台消息的加解密接口(UTF8编码的字符串).
@@ -68,6 +78,20 @@ public class BusinessCrypt {
     byte[] aesKey;
     String token;
     String appId;
+    byte[] appIdBytes;
+    SecretKeySpec keySpec;
+    IvParameterSpec ivSpec;
+
+    // Cipher非线程安全,按线程缓存;doFinal后自动恢复到init时的状态,可直接复用
+    private final ThreadLocal<Cipher> encryptCipher = new ThreadLocal<>();
+    private final ThreadLocal<Cipher> decryptCipher = new ThreadLocal<>();
+    // 加密时拼装明文的缓冲区,按线程复用
+    private final ThreadLocal<byte[]> plainBuffer = new ThreadLocal<>();
+
+    private static final String RANDOM_CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+    private static final String REPLY_FORMAT = "<xml><Encrypt><![CDATA[%1$s]]></Encrypt>"
+            + "<MsgSignature><![CDATA[%2$s]]></MsgSignature>"
+            + "<TimeStamp>%3$s</TimeStamp><Nonce><![CDATA[%4$s]]></Nonce></xml>";
 
     /**
      * 构造函数
@@ -85,6 +109,9 @@ public class BusinessCrypt {
         this.token = token;
         this.appId = appId;
         aesKey = Base64.decodeBase64(encodingAesKey + "=");
+        appIdBytes = appId.getBytes(CHARSET);
+        keySpec = new SecretKeySpec(aesKey, "AES");
+        ivSpec = new IvParameterSpec(aesKey, 0, 16);
     }
 
     public boolean verifyUrl(String msgSignature, String timeStamp, String nonce) throws AesException {
@@ -96,11 +123,188 @@ public class BusinessCrypt {
             sb.append(a);
         }
         String str = sb.toString();
-        String signature = SHA1.sign(str.getBytes());
+        String signature = SHA1.sign(str.getBytes(CHARSET));
 
-        if (!signature.equals(msgSignature)) {
+        if (!SHA1.isEqual(signature, msgSignature)) {
             throw new AesException(AesException.ValidateSignatureError);
         }
         return true;
     }
-}
\ No newline at end of file
+
+    /**
+     * 检验消息的真实性，并且获取解密后的明文.
+     * <ol>
+     * 	<li>利用收到的密文生成安全签名，进行签名验证</li>
+     * 	<li>若验证通过，则提取xml中的加密消息</li>
+     * 	<li>对消息进行解密</li>
+     * </ol>
+     *
+     * @param msgSignature 签名串，对应URL参数的msg_signature
+     * @param timeStamp 时间戳，对应URL参数的timestamp
+     * @param nonce 随机串，对应URL参数的nonce
+     * @param postData 密文，对应POST请求的数据
+     *
+     * @return 解密后的原文
+     * @throws AesException 执行失败，请查看该异常的错误码和具体的错误信息
+     */
+    public String decryptMsg(String msgSignature, String timeStamp, String nonce, String postData)
+            throws AesException {
+        WeChatRequestMessage envelope;
+        try {
+            envelope = XmlUtils.readMessage(new ByteArrayInputStream(postData.getBytes(CHARSET)),
+                    new WeChatRequestMessage());
+        } catch (Exception e) {
+            throw new AesException(AesException.ParseXmlError);
+        }
+        return new String(decryptMsgBytes(msgSignature, timeStamp, nonce, envelope.getEncrypt()), CHARSET);
+    }
+
+    /**
+     * 校验签名并解密Encrypt字段
+     *
+     * @param encrypt 推送消息中Encrypt字段的值
+     * @return 解密后的原文(UTF-8编码)
+     * @throws AesException 执行失败，请查看该异常的错误码和具体的错误信息
+     */
+    public byte[] decryptMsgBytes(String msgSignature, String timeStamp, String nonce, String encrypt)
+            throws AesException {
+        if (encrypt == null) {
+            throw new AesException(AesException.ParseXmlError);
+        }
+        String signature = getSignature(timeStamp, nonce, encrypt);
+        if (!SHA1.isEqual(signature, msgSignature)) {
+            throw new AesException(AesException.ValidateSignatureError);
+        }
+        return decrypt(encrypt);
+    }
+
+    /**
+     * 将公众平台回复用户的消息加密打包.
+     * <ol>
+     * 	<li>对要发送的消息进行AES-CBC加密</li>
+     * 	<li>生成安全签名</li>
+     * 	<li>将消息密文和安全签名打包成xml格式</li>
+     * </ol>
+     *
+     * @param replyMsg 公众平台待回复用户的消息，xml格式的字符串
+     * @param timeStamp 时间戳，可以自己生成，也可以用URL参数的timestamp
+     * @param nonce 随机串，可以自己生成，也可以用URL参数的nonce
+     *
+     * @return 加密后的可以直接回复用户的密文，包括msg_signature, timestamp, nonce, encrypt的xml格式的字符串
+     * @throws AesException 执行失败，请查看该异常的错误码和具体的错误信息
+     */
+    public String encryptMsg(String replyMsg, String timeStamp, String nonce) throws AesException {
+        byte[] bytes = replyMsg.getBytes(CHARSET);
+        return encryptMsg(bytes, 0, bytes.length, timeStamp, nonce);
+    }
+
+    /**
+     * 加密打包UTF-8编码的回复消息
+     */
+    public String encryptMsg(byte[] replyMsg, int offset, int length, String timeStamp, String nonce)
+            throws AesException {
+        String encrypt = encrypt(replyMsg, offset, length);
+        String signature = getSignature(timeStamp, nonce, encrypt);
+        return String.format(REPLY_FORMAT, encrypt, signature, timeStamp, nonce);
+    }
+
+    /**
+     * 对明文进行加密
+     * 明文结构:16字节随机串 + 4字节网络字节序的消息长度 + 消息 + appid,按32字节以PKCS7补位
+     */
+    String encrypt(byte[] text, int offset, int length) throws AesException {
+        int unpadded = 20 + length + appIdBytes.length;
+        int padding = PKCS7Encoder.paddingLength(unpadded);
+        int total = unpadded + padding;
+        byte[] buffer = plainBuffer.get();
+        if (buffer == null || buffer.length < total) {
+            buffer = new byte[total];
+            plainBuffer.set(buffer);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 16; i++) {
+            buffer[i] = (byte) RANDOM_CHARS.charAt(random.nextInt(RANDOM_CHARS.length()));
+        }
+        buffer[16] = (byte) (length >> 24);
+        buffer[17] = (byte) (length >> 16);
+        buffer[18] = (byte) (length >> 8);
+        buffer[19] = (byte) length;
+        System.arraycopy(text, offset, buffer, 20, length);
+        System.arraycopy(appIdBytes, 0, buffer, 20 + length, appIdBytes.length);
+        PKCS7Encoder.pad(buffer, unpadded, padding);
+        try {
+            Cipher cipher = getCipher(encryptCipher, Cipher.ENCRYPT_MODE);
+            int encrypted = cipher.doFinal(buffer, 0, total, buffer, 0);
+            ByteBuffer encoded = java.util.Base64.getEncoder().encode(ByteBuffer.wrap(buffer, 0, encrypted));
+            return new String(encoded.array(), 0, encoded.limit(), StandardCharsets.US_ASCII);
+        } catch (GeneralSecurityException e) {
+            throw new AesException(AesException.EncryptAESError);
+        }
+    }
+
+    /**
+     * 对密文进行解密,并校验appid
+     *
+     * @return 消息原文(UTF-8编码)
+     */
+    byte[] decrypt(String text) throws AesException {
+        byte[] buffer;
+        int length;
+        try {
+            buffer = Base64.decodeBase64(text);
+            Cipher cipher = getCipher(decryptCipher, Cipher.DECRYPT_MODE);
+            length = cipher.doFinal(buffer, 0, buffer.length, buffer, 0);
+        } catch (Exception e) {
+            throw new AesException(AesException.DecryptAESError);
+        }
+        int unpadded = PKCS7Encoder.unpaddedLength(buffer, length);
+        if (unpadded < 20) {
+            throw new AesException(AesException.IllegalBuffer);
+        }
+        int xmlLength = ((buffer[16] & 0xFF) << 24) | ((buffer[17] & 0xFF) << 16)
+                | ((buffer[18] & 0xFF) << 8) | (buffer[19] & 0xFF);
+        if (xmlLength < 0 || 20 + xmlLength > unpadded) {
+            throw new AesException(AesException.IllegalBuffer);
+        }
+        int fromAppIdOffset = 20 + xmlLength;
+        if (unpadded - fromAppIdOffset != appIdBytes.length
+                || !regionEquals(buffer, fromAppIdOffset, appIdBytes)) {
+            throw new AesException(AesException.ValidateAppidError);
+        }
+        return Arrays.copyOfRange(buffer, 20, fromAppIdOffset);
+    }
+
+    private Cipher getCipher(ThreadLocal<Cipher> holder, int mode) throws GeneralSecurityException {
+        Cipher cipher = holder.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(mode, keySpec, ivSpec);
+            holder.set(cipher);
+        }
+        return cipher;
+    }
+
+    private String getSignature(String timeStamp, String nonce, String encrypt) throws AesException {
+        String[] array = new String[]{token, timeStamp, nonce, encrypt};
+        StringBuilder sb = new StringBuilder();
+        // 字符串排序
+        Arrays.sort(array);
+        for (String a : array) {
+            sb.append(a);
+        }
+        String signature = SHA1.sign(sb.toString().getBytes(CHARSET));
+        if (signature == null) {
+            throw new AesException(AesException.ComputeSignatureError);
+        }
+        return signature;
+    }
+
+    private static boolean regionEquals(byte[] buffer, int offset, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
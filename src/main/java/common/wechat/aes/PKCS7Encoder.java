@@ -0,0 +1,46 @@
+package common.wechat.aes;
+
+/**
+ * 提供基于PKCS7算法的加解密接口.
+ * 按32字节分块补位,直接在调用方提供的缓冲区上操作.
+ */
+class PKCS7Encoder {
+    static final int BLOCK_SIZE = 32;
+
+    /**
+     * 获得对明文进行补位填充的字节数.
+     *
+     * @param count 需要进行填充补位操作的明文字节个数
+     * @return 补位字节数,取值1~32
+     */
+    static int paddingLength(int count) {
+        return BLOCK_SIZE - (count % BLOCK_SIZE);
+    }
+
+    /**
+     * 在buffer的offset处写入padding个补位字节
+     */
+    static void pad(byte[] buffer, int offset, int padding) {
+        byte pad = (byte) padding;
+        for (int i = 0; i < padding; i++) {
+            buffer[offset + i] = pad;
+        }
+    }
+
+    /**
+     * 删除解密后明文的补字符
+     *
+     * @param length 解密后明文的字节数
+     * @return 去除补位后的字节数
+     */
+    static int unpaddedLength(byte[] decrypted, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int pad = decrypted[length - 1];
+        if (pad < 1 || pad > BLOCK_SIZE) {
+            pad = 0;
+        }
+        return length - pad;
+    }
+}
@@ -3,15 +3,60 @@ package common.wechat.cache;
 import common.tools.StringUtil;
 import common.wechat.WeChatPropertiesFile;
 import common.wechat.util.ConfigBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * @author LongerHsiao
  * @date 2017-12-14
  */
 public final class CacheManager {
+    private static Logger logger = LoggerFactory.getLogger(CacheManager.class);
+
+    // 仅当key的当前值与期望值一致时才删除
+    private static final String COMPARE_AND_DELETE_SCRIPT =
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end return 0";
+    // 仅当守卫key的当前值与期望值一致时才写入
+    private static final String GUARDED_SETEX_SCRIPT =
+            "if redis.call('get', KEYS[2]) == ARGV[1] then redis.call('setex', KEYS[1], ARGV[3], ARGV[2]) return 1 end return 0";
+    // 计数未达上限时加一并返回新值,否则返回-1;首次计数时设置过期时间
+    private static final String BOUNDED_INCR_SCRIPT =
+            "local count = tonumber(redis.call('get', KEYS[1]) or '0') " +
+            "if count >= tonumber(ARGV[1]) then return -1 end " +
+            "count = redis.call('incr', KEYS[1]) " +
+            "if count == 1 then redis.call('expire', KEYS[1], ARGV[2]) end return count";
+    // 仅当新值大于当前值时写入并设置过期时间
+    private static final String MAX_SETEX_SCRIPT =
+            "if tonumber(ARGV[1]) > tonumber(redis.call('get', KEYS[1]) or '0') then " +
+            "redis.call('setex', KEYS[1], ARGV[2], ARGV[1]) return 1 end return 0";
+    // 令牌桶:按速率补充令牌后取出一个,返回0;令牌不足时返回预计的等待毫秒数
+    private static final String TOKEN_BUCKET_SCRIPT =
+            "local rate = tonumber(ARGV[1]) local capacity = tonumber(ARGV[2]) local now = tonumber(ARGV[3]) " +
+            "local state = redis.call('hmget', KEYS[1], 'tokens', 'ts') " +
+            "local tokens = tonumber(state[1]) or capacity local ts = tonumber(state[2]) or now " +
+            "if now > ts then tokens = math.min(capacity, tokens + (now - ts) * rate / 1000) ts = now end " +
+            "local wait = 0 " +
+            "if tokens >= 1 then tokens = tokens - 1 else wait = math.ceil((1 - tokens) * 1000 / rate) end " +
+            "redis.call('hmset', KEYS[1], 'tokens', tostring(tokens), 'ts', tostring(ts)) " +
+            "redis.call('pexpire', KEYS[1], math.ceil(capacity * 1000 / rate) + 1000) return wait";
+
     private CacheManager() {
         init();
     }
@@ -26,47 +71,377 @@ public final class CacheManager {
 
     public boolean cacheOn = false;
 
-    private Jedis jedis;
+    private JedisPool jedisPool;
+    private final AtomicLong connectionFailures = new AtomicLong();
+
+    // 进程内一级缓存,cacheLocalMaxSize为0时不启用
+    private NearCache nearCache;
+    private String invalidateChannel;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final List<Consumer<String>> invalidationListeners = new CopyOnWriteArrayList<>();
 
+    /**
+     * 连接池配置均可在wechat.properties中覆盖:
+     * cacheTimeout 连接及读写超时毫秒数,默认2000;
+     * cachePoolMaxTotal/cachePoolMaxIdle/cachePoolMinIdle 连接数,默认32/16/2;
+     * cachePoolMaxWaitMillis 获取连接的最长等待毫秒数,默认1000;
+     * cachePoolEvictionRunMillis/cachePoolMinEvictableIdleMillis 空闲连接检测间隔及最短空闲时间,默认30000/60000;
+     * cacheLocalMaxSize/cacheLocalMaxSecond 一级缓存的条目上限及最长存活秒数,默认10000/300;
+     * cacheInvalidateChannel 一级缓存失效通知的频道,默认wechat.cache.invalidate.
+     */
     private void init() {
         Properties config = ConfigBuilder.getInstance().init(WeChatPropertiesFile.filename);
         if (config == null || config.isEmpty()) {
             return;
         }
         String host = config.getProperty("cacheHost");
-        String port = config.getProperty("cachePort");
         if (StringUtil.isEmpty(host)) {
             return;
         }
+        int port = getInt(config, "cachePort", Protocol.DEFAULT_PORT);
+        int timeout = getInt(config, "cacheTimeout", Protocol.DEFAULT_TIMEOUT);
+        String password = config.getProperty("cachePassword");
+        int database = getInt(config, "cacheDatabase", Protocol.DEFAULT_DATABASE);
 
-        if (StringUtil.isEmpty(port)) {
-            jedis = new Jedis(host);
-        } else {
-            jedis = new Jedis(host, Integer.parseInt(port));
-        }
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(getInt(config, "cachePoolMaxTotal", 32));
+        poolConfig.setMaxIdle(getInt(config, "cachePoolMaxIdle", 16));
+        poolConfig.setMinIdle(getInt(config, "cachePoolMinIdle", 2));
+        poolConfig.setMaxWaitMillis(getInt(config, "cachePoolMaxWaitMillis", 1000));
+        // 空闲连接由后台线程定期PING检测,断开的连接被剔除后按minIdle重建
+        poolConfig.setTestWhileIdle(true);
+        poolConfig.setTestOnBorrow(false);
+        poolConfig.setTimeBetweenEvictionRunsMillis(getInt(config, "cachePoolEvictionRunMillis", 30000));
+        poolConfig.setMinEvictableIdleTimeMillis(getInt(config, "cachePoolMinEvictableIdleMillis", 60000));
+        poolConfig.setNumTestsPerEvictionRun(-1);
+
+        jedisPool = new JedisPool(poolConfig, host, port, timeout,
+                StringUtil.isEmpty(password) ? null : password, database);
         cacheOn = true;
+
+        int localMaxSize = getInt(config, "cacheLocalMaxSize", 10000);
+        if (localMaxSize > 0) {
+            nearCache = new NearCache(localMaxSize, getInt(config, "cacheLocalMaxSecond", 300));
+            invalidateChannel = config.getProperty("cacheInvalidateChannel", "wechat.cache.invalidate");
+            startSubscriber();
+        }
+    }
+
+    /**
+     * 订阅失效通知,其他节点写入的key从一级缓存中剔除
+     * 订阅连接长期占用连接池中的一个连接,断开后每秒重试
+     */
+    private void startSubscriber() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try (Jedis jedis = jedisPool.getResource()) {
+                    jedis.subscribe(new JedisPubSub() {
+                        @Override
+                        public void onSubscribe(String channel, int subscribedChannels) {
+                            // 订阅断开期间可能错过失效通知
+                            nearCache.clear();
+                        }
+
+                        @Override
+                        public void onMessage(String channel, String message) {
+                            onInvalidate(message);
+                        }
+                    }, invalidateChannel);
+                } catch (Exception e) {
+                    logger.warn("<<======CacheManager.subscribe:" + e.getMessage());
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "wechat-cache-invalidator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void onInvalidate(String message) {
+        int separator = message.indexOf('|');
+        if (separator < 0 || nodeId.equals(message.substring(0, separator))) {
+            return;
+        }
+        String key = message.substring(separator + 1);
+        nearCache.remove(key);
+        for (Consumer<String> listener : invalidationListeners) {
+            listener.accept(key);
+        }
+    }
+
+    private void publishInvalidation(String key) {
+        if (nearCache != null) {
+            execute(jedis -> jedis.publish(invalidateChannel, nodeId + "|" + key));
+        }
+    }
+
+    /**
+     * 注册失效监听,其他节点写入key时回调
+     */
+    public void addInvalidationListener(Consumer<String> listener) {
+        invalidationListeners.add(listener);
     }
 
-    private Jedis getJedis() {
-        return jedis;
+    private static int getInt(Properties config, String key, int defaultValue) {
+        String value = config.getProperty(key);
+        return StringUtil.isEmpty(value) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * 从连接池借出连接执行重复执行结果不变的命令
+     * 连接异常时,损坏的连接由close()归还为broken,并换用新连接重试一次
+     */
+    private <T> T execute(Function<Jedis, T> command) {
+        return execute(command, true);
+    }
+
+    /**
+     * 从连接池借出连接执行命令
+     * 借出连接失败时换用新连接重试一次;命令发出后连接异常时,仅idempotent为true时重试
+     *
+     * @param idempotent 为false时命令可能已在redis执行,不再重复执行,如计数、令牌及加锁
+     */
+    private <T> T execute(Function<Jedis, T> command, boolean idempotent) {
+        Jedis jedis;
+        try {
+            jedis = jedisPool.getResource();
+        } catch (JedisConnectionException e) {
+            connectionFailures.incrementAndGet();
+            logger.warn("<<======CacheManager.execute:reconnecting, " + e.getMessage());
+            return executeOnce(command);
+        }
+        try (Jedis borrowed = jedis) {
+            return command.apply(borrowed);
+        } catch (JedisConnectionException e) {
+            connectionFailures.incrementAndGet();
+            if (!idempotent) {
+                throw e;
+            }
+            logger.warn("<<======CacheManager.execute:reconnecting, " + e.getMessage());
+            return executeOnce(command);
+        }
+    }
+
+    private <T> T executeOnce(Function<Jedis, T> command) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            return command.apply(jedis);
+        }
+    }
+
+    /**
+     * 健康检查
+     */
+    public boolean isHealthy() {
+        if (jedisPool == null) {
+            return false;
+        }
+        try {
+            return "PONG".equals(execute(Jedis::ping));
+        } catch (Exception e) {
+            logger.error("<<======CacheManager.isHealthy:" + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 连接池使用情况,未启用缓存时返回null
+     */
+    public CachePoolStats getPoolStats() {
+        if (jedisPool == null) {
+            return null;
+        }
+        return new CachePoolStats(jedisPool.getNumActive(), jedisPool.getNumIdle(), jedisPool.getNumWaiters(),
+                jedisPool.getMeanBorrowWaitTimeMillis(), jedisPool.getMaxBorrowWaitTimeMillis(),
+                connectionFailures.get());
     }
 
     public String getValue(String key) {
-        if (getJedis() == null) {
+        if (jedisPool == null) {
             return null;
         }
-        return getJedis().get(key);
+        if (nearCache == null) {
+            return execute(jedis -> jedis.get(key));
+        }
+        NearCache.Entry entry = getEntry(key);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * 先读一级缓存,未命中时以一次往返同时取回值及剩余存活时间
+     */
+    private NearCache.Entry getEntry(String key) {
+        NearCache.Entry entry = nearCache.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        List<Object> result = execute(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.get(key);
+            pipeline.ttl(key);
+            return pipeline.syncAndReturnAll();
+        });
+        nearCache.put(key, (String) result.get(0), (Long) result.get(1));
+        return nearCache.get(key);
+    }
+
+    /**
+     * 获取key的剩余存活秒数
+     * key不存在时返回-2,未设置过期时间时返回-1
+     */
+    public long getSecondsToLive(String key) {
+        if (jedisPool == null) {
+            return -2;
+        }
+        if (nearCache == null) {
+            return execute(jedis -> jedis.ttl(key));
+        }
+        NearCache.Entry entry = getEntry(key);
+        return entry == null ? -2 : entry.getSecondsToLive();
     }
 
     public void setValue(String key, String value) {
-        if (getJedis() != null) {
-            getJedis().set(key, value);
+        if (jedisPool != null) {
+            execute(jedis -> jedis.set(key, value));
+            putLocal(key, value, -1);
         }
     }
 
     public void setValue(String key, String value, int secondsToLive) {
-        if (getJedis() != null) {
-            getJedis().setex(key, secondsToLive, value);
+        if (jedisPool != null) {
+            execute(jedis -> jedis.setex(key, secondsToLive, value));
+            putLocal(key, value, secondsToLive);
+        }
+    }
+
+    public void deleteValue(String key) {
+        if (jedisPool != null) {
+            execute(jedis -> jedis.del(key));
+            if (nearCache != null) {
+                nearCache.remove(key);
+                publishInvalidation(key);
+            }
+        }
+    }
+
+    private void putLocal(String key, String value, long secondsToLive) {
+        if (nearCache != null) {
+            nearCache.put(key, value, secondsToLive);
+            publishInvalidation(key);
+        }
+    }
+
+    /**
+     * 尝试获取锁(SET NX PX)
+     *
+     * @param owner 锁持有者标识,释放时校验
+     */
+    public boolean tryLock(String key, String owner, long millisToLive) {
+        if (jedisPool == null) {
+            return false;
+        }
+        return "OK".equals(execute(jedis -> jedis.set(key, owner, "NX", "PX", millisToLive), false));
+    }
+
+    /**
+     * 释放锁,仅当锁仍由owner持有时删除
+     */
+    public void unlock(String key, String owner) {
+        if (jedisPool != null) {
+            execute(jedis -> jedis.eval(COMPARE_AND_DELETE_SCRIPT,
+                    Collections.singletonList(key), Collections.singletonList(owner)));
+        }
+    }
+
+    public long increment(String key) {
+        if (jedisPool == null) {
+            return 0;
+        }
+        return execute(jedis -> jedis.incr(key), false);
+    }
+
+    public long decrement(String key) {
+        if (jedisPool == null) {
+            return 0;
+        }
+        return execute(jedis -> jedis.decr(key), false);
+    }
+
+    /**
+     * 仅当guardKey的值等于guardValue时才写入key
+     *
+     * @return 是否写入
+     */
+    public boolean setValueIfGuarded(String key, String value, int secondsToLive, String guardKey, String guardValue) {
+        if (jedisPool == null) {
+            return false;
+        }
+        Object result = execute(jedis -> jedis.eval(GUARDED_SETEX_SCRIPT, Arrays.asList(key, guardKey),
+                Arrays.asList(guardValue, value, String.valueOf(secondsToLive))));
+        if (Long.valueOf(1).equals(result)) {
+            putLocal(key, value, secondsToLive);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 计数未达上限时加一
+     *
+     * @return 加一后的计数,已达上限时返回-1
+     */
+    public long incrementIfBelow(String key, long limit, int secondsToLive) {
+        if (jedisPool == null) {
+            return 0;
+        }
+        Object result = execute(jedis -> jedis.eval(BOUNDED_INCR_SCRIPT, Collections.singletonList(key),
+                Arrays.asList(String.valueOf(limit), String.valueOf(secondsToLive))), false);
+        return (Long) result;
+    }
+
+    /**
+     * 读取计数,不经过一级缓存
+     */
+    public long getCount(String key) {
+        if (jedisPool == null) {
+            return 0;
+        }
+        String count = execute(jedis -> jedis.get(key));
+        return StringUtil.isEmpty(count) ? 0 : Long.parseLong(count);
+    }
+
+    /**
+     * 仅当value大于当前计数时写入,不经过一级缓存
+     *
+     * @return 是否写入
+     */
+    public boolean setCountIfGreater(String key, long value, int secondsToLive) {
+        if (jedisPool == null) {
+            return false;
+        }
+        Object result = execute(jedis -> jedis.eval(MAX_SETEX_SCRIPT, Collections.singletonList(key),
+                Arrays.asList(String.valueOf(value), String.valueOf(secondsToLive))));
+        return Long.valueOf(1).equals(result);
+    }
+
+    /**
+     * 从集群共享的令牌桶中取出一个令牌
+     * 各节点以本地时钟补充令牌,时钟回拨时不补充
+     *
+     * @param tokensPerSecond 每秒补充的令牌数
+     * @param capacity        桶容量,即允许的突发请求数
+     * @return 0表示已取得令牌,否则为预计可取得令牌的等待毫秒数
+     */
+    public long acquireToken(String key, int tokensPerSecond, int capacity) {
+        if (jedisPool == null) {
+            return 0;
         }
+        Object result = execute(jedis -> jedis.eval(TOKEN_BUCKET_SCRIPT, Collections.singletonList(key),
+                Arrays.asList(String.valueOf(tokensPerSecond), String.valueOf(capacity),
+                        String.valueOf(System.currentTimeMillis()))), false);
+        return (Long) result;
     }
 }
@@ -0,0 +1,77 @@
+package common.wechat.cache;
+
+import java.io.Serializable;
+
+/**
+ * 缓存连接池使用情况
+ *
+ * @author LongerHsiao
+ * @date 2018-03-06
+ */
+public class CachePoolStats implements Serializable {
+    private static final long serialVersionUID = 2318207372618535409L;
+    private final int active;
+    private final int idle;
+    private final int waiters;
+    private final long meanBorrowWaitMillis;
+    private final long maxBorrowWaitMillis;
+    private final long connectionFailures;
+
+    CachePoolStats(int active, int idle, int waiters,
+                   long meanBorrowWaitMillis, long maxBorrowWaitMillis, long connectionFailures) {
+        this.active = active;
+        this.idle = idle;
+        this.waiters = waiters;
+        this.meanBorrowWaitMillis = meanBorrowWaitMillis;
+        this.maxBorrowWaitMillis = maxBorrowWaitMillis;
+        this.connectionFailures = connectionFailures;
+    }
+
+    /**
+     * 已借出的连接数
+     */
+    public int getActive() {
+        return active;
+    }
+
+    /**
+     * 空闲连接数
+     */
+    public int getIdle() {
+        return idle;
+    }
+
+    /**
+     * 等待获取连接的线程数
+     */
+    public int getWaiters() {
+        return waiters;
+    }
+
+    public long getMeanBorrowWaitMillis() {
+        return meanBorrowWaitMillis;
+    }
+
+    public long getMaxBorrowWaitMillis() {
+        return maxBorrowWaitMillis;
+    }
+
+    /**
+     * 累计连接异常次数
+     */
+    public long getConnectionFailures() {
+        return connectionFailures;
+    }
+
+    @Override
+    public String toString() {
+        return "CachePoolStats{" +
+                "active=" + active +
+                ", idle=" + idle +
+                ", waiters=" + waiters +
+                ", meanBorrowWaitMillis=" + meanBorrowWaitMillis +
+                ", maxBorrowWaitMillis=" + maxBorrowWaitMillis +
+                ", connectionFailures=" + connectionFailures +
+                '}';
+    }
+}
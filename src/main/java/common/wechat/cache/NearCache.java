@@ -0,0 +1,104 @@
+package common.wechat.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内一级缓存
+ * 条目的失效时间取自redis中的剩余存活时间,并以maxSecond为上限,
+ * 条目数超过maxSize时先清理过期条目,仍超出则任意淘汰.
+ *
+ * @author LongerHsiao
+ * @date 2018-03-08
+ */
+final class NearCache {
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final long maxMillis;
+
+    NearCache(int maxSize, int maxSecond) {
+        this.maxSize = maxSize;
+        this.maxMillis = maxSecond * 1000L;
+    }
+
+    Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isStale()) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @param secondsToLive redis中的剩余存活秒数,-1表示未设置过期时间
+     */
+    void put(String key, String value, long secondsToLive) {
+        if (value == null || secondsToLive == 0 || secondsToLive < -1) {
+            entries.remove(key);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = secondsToLive == -1 ? -1 : now + secondsToLive * 1000;
+        long staleAt = expiresAt == -1 ? now + maxMillis : Math.min(expiresAt, now + maxMillis);
+        if (entries.size() >= maxSize) {
+            evict();
+        }
+        entries.put(key, new Entry(value, expiresAt, staleAt));
+    }
+
+    void remove(String key) {
+        entries.remove(key);
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        entries.values().removeIf(Entry::isStale);
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() >= maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    static final class Entry {
+        private final String value;
+        private final long expiresAt;
+        private final long staleAt;
+
+        private Entry(String value, long expiresAt, long staleAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.staleAt = staleAt;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        /**
+         * redis中的剩余存活秒数,未设置过期时间时返回-1
+         */
+        long getSecondsToLive() {
+            if (expiresAt == -1) {
+                return -1;
+            }
+            return Math.max(0, (expiresAt - System.currentTimeMillis()) / 1000);
+        }
+
+        private boolean isStale() {
+            return System.currentTimeMillis() >= staleAt;
+        }
+    }
+}
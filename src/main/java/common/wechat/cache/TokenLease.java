@@ -0,0 +1,71 @@
+package common.wechat.cache;
+
+import java.util.UUID;
+
+/**
+ * 凭证刷新租约
+ * 集群中同一rootKey下的凭证同一时刻只允许一个节点向微信服务器刷新:
+ * 1、租约通过SET NX PX获取,到期自动释放,避免持有节点宕机后无法刷新;
+ * 2、每次获取租约时递增fence值,写回凭证时校验fence,
+ * 租约已过期的慢节点无法覆盖其他节点写入的新凭证.
+ *
+ * @author LongerHsiao
+ * @date 2018-03-05
+ */
+public final class TokenLease {
+    private final CacheManager cacheManager;
+    private final String leaseKey;
+    private final String fenceKey;
+    private final long leaseMillis;
+
+    public TokenLease(CacheManager cacheManager, String key, long leaseMillis) {
+        this.cacheManager = cacheManager;
+        this.leaseKey = key + ".LEASE";
+        this.fenceKey = key + ".FENCE";
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * 尝试获取租约
+     *
+     * @return 获取成功时返回租约凭据,否则返回null
+     */
+    public Grant tryAcquire() {
+        String owner = UUID.randomUUID().toString();
+        if (!cacheManager.tryLock(leaseKey, owner, leaseMillis)) {
+            return null;
+        }
+        return new Grant(owner, cacheManager.increment(fenceKey));
+    }
+
+    /**
+     * 以租约凭据写入凭证
+     *
+     * @return false表示租约已被其他节点接管,本次写入被拒绝
+     */
+    public boolean write(Grant grant, String key, String value, int secondsToLive) {
+        return cacheManager.setValueIfGuarded(key, value, secondsToLive, fenceKey, String.valueOf(grant.fence));
+    }
+
+    public void release(Grant grant) {
+        cacheManager.unlock(leaseKey, grant.owner);
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    public static final class Grant {
+        private final String owner;
+        private final long fence;
+
+        private Grant(String owner, long fence) {
+            this.owner = owner;
+            this.fence = fence;
+        }
+
+        public long getFence() {
+            return fence;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package common.wechat.http;
+
+import common.tools.StringUtil;
+import common.wechat.WeChatPropertiesFile;
+import common.wechat.util.ConfigBuilder;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 全局共享的http连接池
+ * 所有微信接口调用复用同一连接池,避免每次请求重新建立TCP及TLS连接.
+ *
+ * @author LongerHsiao
+ * @date 2018-03-12
+ */
+public final class HttpClientManager {
+    private HttpClientManager() {
+        init();
+    }
+
+    private static class HttpClientManagerHolder {
+        private static final HttpClientManager INSTANCE = new HttpClientManager();
+    }
+
+    public static HttpClientManager getInstance() {
+        return HttpClientManagerHolder.INSTANCE;
+    }
+
+    private static final ResponseHandler<String> STRING_HANDLER = response -> {
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (status < 200 || status >= 300) {
+            EntityUtils.consume(entity);
+            throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+        }
+        return entity == null ? null : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+    };
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+
+    /**
+     * 连接池配置均可在wechat.properties中覆盖:
+     * httpMaxTotal/httpMaxPerRoute 连接总数及单个域名的连接数,默认200/50;
+     * httpConnectTimeout/httpSocketTimeout 连接及读取超时毫秒数,默认2000/5000;
+     * httpConnectionRequestTimeout 从连接池获取连接的最长等待毫秒数,默认1000;
+     * httpKeepAliveSecond 服务端未声明Keep-Alive时连接的保持秒数,默认30;
+     * httpIdleSecond 空闲连接的关闭秒数,默认60.
+     */
+    private void init() {
+        Properties config = ConfigBuilder.getInstance().init(WeChatPropertiesFile.filename);
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(getInt(config, "httpMaxTotal", 200));
+        connectionManager.setDefaultMaxPerRoute(getInt(config, "httpMaxPerRoute", 50));
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(getInt(config, "httpConnectTimeout", 2000))
+                .setSocketTimeout(getInt(config, "httpSocketTimeout", 5000))
+                .setConnectionRequestTimeout(getInt(config, "httpConnectionRequestTimeout", 1000))
+                .build();
+
+        long keepAliveMillis = getInt(config, "httpKeepAliveSecond", 30) * 1000L;
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : keepAliveMillis;
+        };
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .evictExpiredConnections()
+                .evictIdleConnections(getInt(config, "httpIdleSecond", 60), TimeUnit.SECONDS)
+                .build();
+    }
+
+    private static int getInt(Properties config, String key, int defaultValue) {
+        String value = config == null ? null : config.getProperty(key);
+        return StringUtil.isEmpty(value) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public String get(String url) throws IOException {
+        return httpClient.execute(new HttpGet(url), STRING_HANDLER);
+    }
+
+    public String post(String url, String json) throws IOException {
+        HttpPost httpPost = new HttpPost(url);
+        httpPost.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+        return httpClient.execute(httpPost, STRING_HANDLER);
+    }
+
+    /**
+     * 连接池使用情况
+     * leased为已借出的连接数,available为可复用的空闲连接数,pending为等待连接的请求数
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+}
@@ -0,0 +1,11 @@
+package common.wechat.message;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+class ArticleItem {
+	public String Title;
+	public String Description;
+	public String PicUrl;
+	public String Url;
+}
\ No newline at end of file
@@ -0,0 +1,8 @@
+package common.wechat.message;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+class ImageMedia {
+	public String MediaId;
+}
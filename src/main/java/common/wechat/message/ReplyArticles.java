@@ -1,5 +1,8 @@
 package common.wechat.message;
 
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
 import javax.xml.bind.annotation.XmlRootElement;
 import java.util.ArrayList;
 import java.util.List;
@@ -35,17 +38,27 @@ public class ReplyArticles extends ReplyMessage {
 
 		ArticleCount = Articles.item.size();
 	}
+
+	@Override
+	public JSONObject toCustomerMessage(String touser) {
+		JSONArray articles = new JSONArray();
+		if (Articles != null) {
+			for (ArticleItem item : Articles.item) {
+				JSONObject article = new JSONObject(4);
+				article.put("title", item.Title);
+				article.put("description", item.Description);
+				article.put("url", item.Url);
+				article.put("picurl", item.PicUrl);
+				articles.add(article);
+			}
+		}
+		JSONObject news = new JSONObject(1);
+		news.put("articles", articles);
+		return customerMessage(touser, "news", news);
+	}
 }
 
 @XmlRootElement
 class Articles {
 	public List<ArticleItem> item = new ArrayList<ArticleItem>();
-}
-
-@XmlRootElement
-class ArticleItem {
-	public String Title;
-	public String Description;
-	public String PicUrl;
-	public String Url;
 }
\ No newline at end of file
@@ -0,0 +1,182 @@
+package common.wechat.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 被动回复消息编码器
+ * 文本、图片、图文三种固定格式的回复按预编译的模板直接编码为UTF-8字节,
+ * 写入线程内复用的缓冲区后一次性输出,不使用反射,也不生成中间字符串;
+ * 其他类型仍由JAXB处理.
+ *
+ * @author LongerHsiao
+ * @date 2018-04-02
+ */
+public final class ReplyEncoder {
+    private static final byte[] TO_USER_NAME = bytes("<xml><ToUserName><![CDATA[");
+    private static final byte[] FROM_USER_NAME = bytes("]]></ToUserName><FromUserName><![CDATA[");
+    private static final byte[] CREATE_TIME = bytes("]]></FromUserName><CreateTime>");
+    private static final byte[] MSG_TYPE = bytes("</CreateTime><MsgType><![CDATA[");
+    private static final byte[] TEXT_CONTENT = bytes("]]></MsgType><Content><![CDATA[");
+    private static final byte[] TEXT_END = bytes("]]></Content></xml>");
+    private static final byte[] IMAGE_MEDIA_ID = bytes("]]></MsgType><Image><MediaId><![CDATA[");
+    private static final byte[] IMAGE_END = bytes("]]></MediaId></Image></xml>");
+    private static final byte[] NEWS_ARTICLE_COUNT = bytes("]]></MsgType><ArticleCount>");
+    private static final byte[] NEWS_ARTICLES = bytes("</ArticleCount><Articles>");
+    private static final byte[] ITEM_TITLE = bytes("<item><Title><![CDATA[");
+    private static final byte[] ITEM_DESCRIPTION = bytes("]]></Title><Description><![CDATA[");
+    private static final byte[] ITEM_PIC_URL = bytes("]]></Description><PicUrl><![CDATA[");
+    private static final byte[] ITEM_URL = bytes("]]></PicUrl><Url><![CDATA[");
+    private static final byte[] ITEM_END = bytes("]]></Url></item>");
+    private static final byte[] NEWS_END = bytes("</Articles></xml>");
+    // CDATA中出现的"]]>"拆分为两段CDATA
+    private static final byte[] CDATA_SPLIT = bytes("]]]]><![CDATA[>");
+
+    // 超过该大小的缓冲区用完即弃,避免个别大消息长期占用内存
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    private static final ThreadLocal<Buffer> BUFFERS = ThreadLocal.withInitial(Buffer::new);
+
+    private ReplyEncoder() {
+    }
+
+    /**
+     * 是否可按模板编码,子类可能带有额外字段,仍交由JAXB处理
+     */
+    public static boolean supports(Object reply) {
+        Class<?> type = reply.getClass();
+        return type == ReplyText.class || type == ReplyImage.class || type == ReplyArticles.class;
+    }
+
+    public static void encode(ReplyMessage reply, OutputStream outputStream) throws IOException {
+        Buffer buffer = BUFFERS.get();
+        buffer.count = 0;
+        if (reply instanceof ReplyText) {
+            ReplyText text = (ReplyText) reply;
+            writeHeader(buffer, text.ToUserName, text.FromUserName, text.CreateTime, text.MsgType);
+            buffer.write(TEXT_CONTENT);
+            buffer.writeCData(text.Content);
+            buffer.write(TEXT_END);
+        } else if (reply instanceof ReplyImage) {
+            ReplyImage image = (ReplyImage) reply;
+            writeHeader(buffer, image.ToUserName, image.FromUserName, image.CreateTime, image.MsgType);
+            buffer.write(IMAGE_MEDIA_ID);
+            buffer.writeCData(image.Image == null ? null : image.Image.MediaId);
+            buffer.write(IMAGE_END);
+        } else if (reply instanceof ReplyArticles) {
+            ReplyArticles news = (ReplyArticles) reply;
+            writeHeader(buffer, news.ToUserName, news.FromUserName, news.CreateTime, news.MsgType);
+            buffer.write(NEWS_ARTICLE_COUNT);
+            buffer.writeLong(news.ArticleCount);
+            buffer.write(NEWS_ARTICLES);
+            if (news.Articles != null) {
+                for (ArticleItem item : news.Articles.item) {
+                    buffer.write(ITEM_TITLE);
+                    buffer.writeCData(item.Title);
+                    buffer.write(ITEM_DESCRIPTION);
+                    buffer.writeCData(item.Description);
+                    buffer.write(ITEM_PIC_URL);
+                    buffer.writeCData(item.PicUrl);
+                    buffer.write(ITEM_URL);
+                    buffer.writeCData(item.Url);
+                    buffer.write(ITEM_END);
+                }
+            }
+            buffer.write(NEWS_END);
+        } else {
+            throw new IllegalArgumentException("unsupported reply type: " + reply.getClass().getName());
+        }
+        outputStream.write(buffer.bytes, 0, buffer.count);
+        if (buffer.bytes.length > MAX_RETAINED_BUFFER) {
+            BUFFERS.remove();
+        }
+    }
+
+    private static void writeHeader(Buffer buffer, String toUserName, String fromUserName, long createTime, String msgType) {
+        buffer.write(TO_USER_NAME);
+        buffer.writeCData(toUserName);
+        buffer.write(FROM_USER_NAME);
+        buffer.writeCData(fromUserName);
+        buffer.write(CREATE_TIME);
+        buffer.writeLong(createTime);
+        buffer.write(MSG_TYPE);
+        buffer.writeCData(msgType);
+    }
+
+    private static byte[] bytes(String segment) {
+        return segment.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class Buffer {
+        private byte[] bytes = new byte[1024];
+        private int count;
+
+        private void ensureCapacity(int extra) {
+            if (count + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length << 1, count + extra)];
+                System.arraycopy(bytes, 0, grown, 0, count);
+                bytes = grown;
+            }
+        }
+
+        private void write(byte[] segment) {
+            ensureCapacity(segment.length);
+            System.arraycopy(segment, 0, bytes, count, segment.length);
+            count += segment.length;
+        }
+
+        private void writeLong(long value) {
+            ensureCapacity(20);
+            if (value < 0) {
+                bytes[count++] = '-';
+                value = -value;
+            }
+            int start = count;
+            do {
+                bytes[count++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            for (int i = start, j = count - 1; i < j; i++, j--) {
+                byte b = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = b;
+            }
+        }
+
+        /**
+         * 按UTF-8编码写入CDATA内容
+         */
+        private void writeCData(String value) {
+            if (value == null) {
+                return;
+            }
+            int length = value.length();
+            ensureCapacity(length * 3);
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c == ']' && value.startsWith("]]>", i)) {
+                    ensureCapacity(CDATA_SPLIT.length + (length - i) * 3);
+                    write(CDATA_SPLIT);
+                    i += 2;
+                } else if (c < 0x80) {
+                    bytes[count++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[count++] = (byte) (0xC0 | (c >> 6));
+                    bytes[count++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    bytes[count++] = (byte) (0xF0 | (codePoint >> 18));
+                    bytes[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    bytes[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    bytes[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    bytes[count++] = '?';
+                } else {
+                    bytes[count++] = (byte) (0xE0 | (c >> 12));
+                    bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    bytes[count++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+    }
+}
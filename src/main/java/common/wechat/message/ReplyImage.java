@@ -0,0 +1,32 @@
+package common.wechat.message;
+
+import com.alibaba.fastjson.JSONObject;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement(name = "xml")
+public class ReplyImage extends ReplyMessage {
+
+	public String ToUserName;
+	public String FromUserName;
+	public long CreateTime;
+	public String MsgType = "image";
+	public ImageMedia Image;
+
+	/**
+	 * @param mediaId 通过素材管理接口上传多媒体文件得到的id
+	 */
+	public void setMediaId(String mediaId) {
+		if (Image == null) {
+			Image = new ImageMedia();
+		}
+		Image.MediaId = mediaId;
+	}
+
+	@Override
+	public JSONObject toCustomerMessage(String touser) {
+		JSONObject image = new JSONObject(1);
+		image.put("media_id", Image == null ? null : Image.MediaId);
+		return customerMessage(touser, "image", image);
+	}
+}
@@ -1,7 +1,12 @@
 package common.wechat.message;
 
+import com.alibaba.fastjson.JSONObject;
 import common.wechat.util.XmlUtils;
 
+import javax.xml.bind.JAXBException;
+import java.io.IOException;
+import java.io.OutputStream;
+
 public class ReplyMessage implements IWeChatMessage {
 	protected String openid;
 
@@ -9,6 +14,39 @@ public class ReplyMessage implements IWeChatMessage {
 		return XmlUtils.toXml(this);
 	}
 
+	/**
+	 * 直接写入输出流(如HttpServletResponse.getOutputStream()),不经过中间字符串
+	 * 文本、图片、图文回复按模板编码,其他类型由JAXB处理
+	 */
+	public void writeTo(OutputStream outputStream) throws IOException {
+		if (ReplyEncoder.supports(this)) {
+			ReplyEncoder.encode(this, outputStream);
+			return;
+		}
+		try {
+			XmlUtils.writeXml(this, outputStream);
+		} catch (JAXBException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * 转换为客服消息json,不支持以客服消息发送的类型返回null
+	 *
+	 * @param touser 接收者openid
+	 */
+	public JSONObject toCustomerMessage(String touser) {
+		return null;
+	}
+
+	static JSONObject customerMessage(String touser, String msgType, JSONObject content) {
+		JSONObject message = new JSONObject(3);
+		message.put("touser", touser);
+		message.put("msgtype", msgType);
+		message.put(msgType, content);
+		return message;
+	}
+
 	@Override
 	public String getOpenid() {
 		return openid;
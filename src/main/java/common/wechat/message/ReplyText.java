@@ -0,0 +1,22 @@
+package common.wechat.message;
+
+import com.alibaba.fastjson.JSONObject;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement(name = "xml")
+public class ReplyText extends ReplyMessage {
+
+	public String ToUserName;
+	public String FromUserName;
+	public long CreateTime;
+	public String MsgType = "text";
+	public String Content;
+
+	@Override
+	public JSONObject toCustomerMessage(String touser) {
+		JSONObject text = new JSONObject(1);
+		text.put("content", Content);
+		return customerMessage(touser, "text", text);
+	}
+}
@@ -0,0 +1,24 @@
+package common.wechat.message;
+
+/**
+ * 进程内消息处理器
+ *
+ * @author LongerHsiao
+ * @date 2018-03-14
+ */
+public interface WeChatMessageHandler {
+    /**
+     * 处理消息
+     *
+     * @return 回复消息,无需回复时返回null
+     */
+    ReplyMessage handle(WeChatRequestMessage message) throws Exception;
+
+    /**
+     * 异步处理模式下立即返回的快速回复,默认返回null即回复"success"
+     * 在请求线程中执行,不应有耗时操作
+     */
+    default ReplyMessage acknowledge(WeChatRequestMessage message) {
+        return null;
+    }
+}
@@ -2,6 +2,10 @@ package common.wechat.message;
 
 import common.wechat.util.XmlUtils;
 
+import javax.xml.bind.JAXBException;
+import java.io.IOException;
+import java.io.OutputStream;
+
 /**
  * @author LongerHsiao
  * @date 2017-12-5
@@ -13,6 +17,17 @@ public class WeChatReplyMessage implements IWeChatMessage {
         return XmlUtils.toXml(this);
     }
 
+    /**
+     * 直接写入输出流(如HttpServletResponse.getOutputStream()),不经过中间字符串
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        try {
+            XmlUtils.writeXml(this, outputStream);
+        } catch (JAXBException e) {
+            throw new IOException(e);
+        }
+    }
+
     @Override
     public String getOpenid() {
         return openid;
@@ -0,0 +1,185 @@
+package common.wechat.message;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 微信推送的消息/事件
+ * 常用字段直接映射为属性,其余字段保存在extras中;
+ * 可通过reset()清空后重复用于解析.
+ *
+ * @author LongerHsiao
+ * @date 2018-03-26
+ */
+public class WeChatRequestMessage implements IWeChatMessage {
+    private String toUserName;
+    private String fromUserName;
+    private long createTime;
+    private String msgType;
+    private String event;
+    private String eventKey;
+    private String msgId;
+    private String content;
+    private String encrypt;
+    private Map<String, String> extras;
+
+    /**
+     * 按字段名赋值,由XmlUtils在解析时调用
+     */
+    public void set(String name, String value) {
+        switch (name) {
+            case "ToUserName":
+                toUserName = value;
+                break;
+            case "FromUserName":
+                fromUserName = value;
+                break;
+            case "CreateTime":
+                createTime = parseLong(value);
+                break;
+            case "MsgType":
+                msgType = value;
+                break;
+            case "Event":
+                event = value;
+                break;
+            case "EventKey":
+                eventKey = value;
+                break;
+            case "MsgId":
+                msgId = value;
+                break;
+            case "Content":
+                content = value;
+                break;
+            case "Encrypt":
+                encrypt = value;
+                break;
+            default:
+                if (extras == null) {
+                    extras = new LinkedHashMap<>();
+                }
+                extras.put(name, value);
+        }
+    }
+
+    public String get(String name) {
+        switch (name) {
+            case "ToUserName":
+                return toUserName;
+            case "FromUserName":
+                return fromUserName;
+            case "CreateTime":
+                return createTime == 0 ? null : String.valueOf(createTime);
+            case "MsgType":
+                return msgType;
+            case "Event":
+                return event;
+            case "EventKey":
+                return eventKey;
+            case "MsgId":
+                return msgId;
+            case "Content":
+                return content;
+            case "Encrypt":
+                return encrypt;
+            default:
+                return extras == null ? null : extras.get(name);
+        }
+    }
+
+    public void reset() {
+        toUserName = null;
+        fromUserName = null;
+        createTime = 0;
+        msgType = null;
+        event = null;
+        eventKey = null;
+        msgId = null;
+        content = null;
+        encrypt = null;
+        if (extras != null) {
+            extras.clear();
+        }
+    }
+
+    /**
+     * 以字段名为key的全部字段,供按Map读取参数的旧代码使用
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        putIfPresent(map, "ToUserName", toUserName);
+        putIfPresent(map, "FromUserName", fromUserName);
+        putIfPresent(map, "CreateTime", get("CreateTime"));
+        putIfPresent(map, "MsgType", msgType);
+        putIfPresent(map, "Event", event);
+        putIfPresent(map, "EventKey", eventKey);
+        putIfPresent(map, "MsgId", msgId);
+        putIfPresent(map, "Content", content);
+        putIfPresent(map, "Encrypt", encrypt);
+        if (extras != null) {
+            map.putAll(extras);
+        }
+        return map;
+    }
+
+    private static void putIfPresent(Map<String, Object> map, String name, String value) {
+        if (value != null) {
+            map.put(name, value);
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value == null ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public String getOpenid() {
+        return fromUserName;
+    }
+
+    public String getToUserName() {
+        return toUserName;
+    }
+
+    public String getFromUserName() {
+        return fromUserName;
+    }
+
+    public long getCreateTime() {
+        return createTime;
+    }
+
+    public String getMsgType() {
+        return msgType;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public String getEventKey() {
+        return eventKey;
+    }
+
+    public String getMsgId() {
+        return msgId;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public String getEncrypt() {
+        return encrypt;
+    }
+
+    public Map<String, String> getExtras() {
+        return extras == null ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(extras);
+    }
+}
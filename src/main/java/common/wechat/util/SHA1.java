@@ -4,41 +4,58 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 /**
+ * SHA-1签名
+ * 每个线程复用一个MessageDigest实例,摘要一次性编码为十六进制字符串.
+ *
  * @author LongerHsiao
  * @date 2018-01-14
  */
 public class SHA1 {
-    public static String sign(byte[] bytes) {
-        String signature = null;
+    private static final char[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            byte[] digest = md.digest(bytes);
-            signature = byteToStr(digest);
+            return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+            throw new IllegalStateException(e);
         }
-        return signature;
+    });
+
+    public static String sign(byte[] bytes) {
+        return sign(bytes, 0, bytes.length);
+    }
+
+    public static String sign(byte[] bytes, int offset, int length) {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        md.update(bytes, offset, length);
+        return toHex(md.digest());
     }
 
     /**
-     * 将字节数组转换为十六进制字符串
+     * 比较签名是否一致,耗时与首个不同字符的位置无关
      */
-    private static String byteToStr(byte[] bytes) {
-        StringBuilder strDigest = new StringBuilder();
-        for (byte b : bytes) {
-            strDigest.append(byteToHexStr(b));
+    public static boolean isEqual(String expected, String actual) {
+        if (expected == null || actual == null || expected.length() != actual.length()) {
+            return false;
+        }
+        int result = 0;
+        for (int i = 0; i < expected.length(); i++) {
+            result |= expected.charAt(i) ^ actual.charAt(i);
         }
-        return strDigest.toString();
+        return result == 0;
     }
 
     /**
-     * 将字节转换为十六进制字符串
+     * 将字节数组转换为十六进制字符串
      */
-    private static String byteToHexStr(byte mByte) {
-        char[] Digit = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
-        char[] tempArr = new char[2];
-        tempArr[0] = Digit[(mByte >>> 4) & 0X0F];
-        tempArr[1] = Digit[mByte & 0X0F];
-        return new String(tempArr);
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length << 1];
+        for (int i = 0, j = 0; i < bytes.length; i++) {
+            chars[j++] = HEX_DIGITS[(bytes[i] >>> 4) & 0x0F];
+            chars[j++] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
     }
-}
\ No newline at end of file
+}
@@ -2,22 +2,26 @@ package common.wechat.util;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import common.wechat.message.WeChatRequestMessage;
 import org.xml.sax.SAXException;
 
 import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
 
 /**
  * @author LongerHsiao
@@ -26,33 +30,127 @@ import java.util.Map;
 public class XmlUtils {
     private static Logger logger = LoggerFactory.getLogger(XmlUtils.class);
 
+    // JAXBContext线程安全且创建开销大,按类缓存;Marshaller非线程安全,按线程缓存
+    private static final ConcurrentMap<Class<?>, JAXBContext> CONTEXTS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Map<Class<?>, Marshaller>> MARSHALLERS = ThreadLocal.withInitial(HashMap::new);
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
     public static String toXml(Object obj) {
         String result = null;
         try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-            JAXBContext context = JAXBContext.newInstance(obj.getClass());
-            Marshaller marshaller = context.createMarshaller();
-            marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
-            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, false);
-            marshaller.marshal(obj, outputStream);
+            writeXml(obj, outputStream);
             result = outputStream.toString("utf-8");
         } catch (Exception e) {
-            logger.error("<<======XmlUtils.toXml:", e.getMessage());
+            logger.error("<<======XmlUtils.toXml:", e);
         }
         return result;
     }
 
+    /**
+     * 将对象以UTF-8编码的xml直接写入输出流,不关闭输出流
+     * JAXBContext按类缓存,Marshaller按线程复用
+     */
+    public static void writeXml(Object obj, OutputStream outputStream) throws JAXBException {
+        getMarshaller(obj.getClass()).marshal(obj, outputStream);
+    }
+
+    private static Marshaller getMarshaller(Class<?> type) throws JAXBException {
+        Map<Class<?>, Marshaller> marshallers = MARSHALLERS.get();
+        Marshaller marshaller = marshallers.get(type);
+        if (marshaller == null) {
+            JAXBContext context = CONTEXTS.get(type);
+            if (context == null) {
+                context = JAXBContext.newInstance(type);
+                JAXBContext existing = CONTEXTS.putIfAbsent(type, context);
+                if (existing != null) {
+                    context = existing;
+                }
+            }
+            marshaller = context.createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, false);
+            marshallers.put(type, marshaller);
+        }
+        return marshaller;
+    }
+
+    /**
+     * 解析微信推送的xml
+     * 以StAX逐个读取根节点下的字段,不构建DOM;嵌套字段取其全部文本.
+     * 禁用DTD及外部实体,防止XXE.
+     *
+     * @param message 解析结果写入该对象,可复用
+     */
+    public static WeChatRequestMessage readMessage(InputStream is, WeChatRequestMessage message)
+            throws XMLStreamException {
+        readFields(is, message::set);
+        return message;
+    }
+
+    private static void readFields(InputStream is, BiConsumer<String, String> fields) throws XMLStreamException {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(is);
+        try {
+            StringBuilder text = new StringBuilder(64);
+            String field = null;
+            int depth = 0;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        if (depth == 2) {
+                            field = reader.getLocalName();
+                            text.setLength(0);
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (depth >= 2) {
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == 2) {
+                            fields.accept(field, text.toString());
+                        }
+                        depth--;
+                        break;
+                    default:
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 解析为以字段名为key的Map,规则同readMessage
+     */
     public static Map<String, String> xmlToMap(InputStream is)
             throws ParserConfigurationException, SAXException, IOException {
         Map<String, String> map = new HashMap<>();
-        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        Document document = builder.parse(is);
-        Element root = document.getDocumentElement();
-        NodeList list = root.getChildNodes();
-        for (int i = 0; i < list.getLength(); i++) {
-            Node node = list.item(i);
-            map.put(node.getNodeName(), node.getTextContent());
+        try {
+            readFields(is, map::put);
+        } catch (XMLStreamException e) {
+            if (e.getNestedException() instanceof IOException) {
+                throw (IOException) e.getNestedException();
+            }
+            throw new SAXException(e);
         }
         return map;
     }
+
+    /**
+     * 解析为WeChatRequestMessage.toMap()的形式,供按Map读取参数的旧代码使用
+     */
+    public static Map<String, Object> readMessageMap(InputStream is) throws XMLStreamException {
+        return readMessage(is, new WeChatRequestMessage()).toMap();
+    }
 }